@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.jhu.hopkinspd.math.AudioFeatures;
+import edu.jhu.hopkinspd.math.MFCC;
+import edu.jhu.hopkinspd.math.RealFFT;
+import edu.jhu.hopkinspd.math.TriaxialFeatures;
+import edu.jhu.hopkinspd.math.Window;
+
+/**
+ * Per-frame cost of the feature extractors used by AccelWriter,
+ * CompassWriter and AudioWriter, with the writers' own settings, on one
+ * frame of fixture data at the 128 and 8192 frame sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeatureBenchmark
+{
+	// Same settings as AccelWriter and AudioWriter
+	private static final double[] ACCEL_BANDEDGES = {0,1,3,6,10};
+	private static final int ACCEL_MIN_FFT_SIZE = 128;
+	private static final double[] AUDIO_BANDEDGES = {50,250,500,1000,2000};
+	private static final int MFCCS = 12;
+	private static final int MEL_BANDS = 20;
+
+	@Param({"128", "8192"})
+	public int size;
+
+	private float[][] accel;
+	private short[] audio;
+	private double[] features;
+	private TriaxialFeatures accelFeatures, compassFeatures;
+	private AudioFeatures audioFeatures;
+	private MFCC mfcc;
+	private double[] spectrumR, spectrumI, ceps;
+
+	@Setup
+	public void setup()
+	{
+		accel = Fixtures.accel();
+		audio = Fixtures.audio();
+
+		accelFeatures = new TriaxialFeatures(size, ACCEL_BANDEDGES, ACCEL_MIN_FFT_SIZE);
+		accelFeatures.setSampleRate(Fixtures.ACCEL_RATE);
+		compassFeatures = new TriaxialFeatures(size);
+		audioFeatures = new AudioFeatures(size, MFCCS, MEL_BANDS, Fixtures.AUDIO_RATE, AUDIO_BANDEDGES);
+		features = new double[Math.max(accelFeatures.featureCount(), audioFeatures.featureCount())];
+
+		// Spectrum of one windowed audio frame for the cepstrum on its own
+		mfcc = new MFCC(size, MFCCS, MEL_BANDS, Fixtures.AUDIO_RATE);
+		spectrumR = new double[size];
+		spectrumI = new double[size/2 + 1];
+		ceps = new double[MFCCS];
+		Window.get(Window.HAMMING, size).applyWindow(audio, spectrumR);
+		new RealFFT(size).fft(spectrumR, spectrumR, spectrumI);
+	}
+
+	// One frame of samples through the running moments and the extractor
+	private int triaxial(TriaxialFeatures extractor)
+	{
+		extractor.clear();
+		float[] t = accel[0], x = accel[1], y = accel[2], z = accel[3];
+		for (int i = 0; i < size; i ++)
+			extractor.push(t[i], x[i], y[i], z[i]);
+		return extractor.extract(features, 0);
+	}
+
+	@Benchmark
+	public int accelFeatures()
+	{
+		return triaxial(accelFeatures);
+	}
+
+	@Benchmark
+	public int compassFeatures()
+	{
+		return triaxial(compassFeatures);
+	}
+
+	@Benchmark
+	public int audioFeatures()
+	{
+		audioFeatures.load(audio, size);
+		return audioFeatures.extract(features, 0);
+	}
+
+	@Benchmark
+	public double[] mfccCepstrum()
+	{
+		mfcc.cepstrum(spectrumR, spectrumI, ceps);
+		return ceps;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.bench;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fixture data for the benchmarks, loaded from the classpath.
+ *
+ * accel.bin is a tri-axial capture in the float output format: big-endian
+ * (t, x, y, z) rows, t in seconds, at 100 Hz. audio.raw is 16-bit
+ * little-endian PCM at 8000 Hz, as AudioWriter writes its raw stream.
+ * Both hold FIXTURE_LENGTH samples.
+ */
+public class Fixtures
+{
+	public static final int FIXTURE_LENGTH = 8192;
+	public static final double ACCEL_RATE = 100.0;
+	public static final double AUDIO_RATE = 8000.0;
+
+	public static final String ACCEL_FILE = "accel.bin";
+	public static final String AUDIO_FILE = "audio.raw";
+
+	private static float[][] accel = null;
+	private static short[] audio = null;
+
+	// Rows of the accel fixture as {t, x, y, z} columns
+	public static synchronized float[][] accel()
+	{
+		if (accel == null)
+		{
+			float[][] cols = new float[4][FIXTURE_LENGTH];
+			DataInputStream in = new DataInputStream(open(ACCEL_FILE));
+			try
+			{
+				for (int i = 0; i < FIXTURE_LENGTH; i ++)
+					for (int c = 0; c < 4; c ++)
+						cols[c][i] = in.readFloat();
+				in.close();
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException("Bad fixture " + ACCEL_FILE, e);
+			}
+			accel = cols;
+		}
+		return accel;
+	}
+
+	public static synchronized short[] audio()
+	{
+		if (audio == null)
+		{
+			short[] samples = new short[FIXTURE_LENGTH];
+			DataInputStream in = new DataInputStream(open(AUDIO_FILE));
+			try
+			{
+				for (int i = 0; i < FIXTURE_LENGTH; i ++)
+				{
+					int lo = in.readUnsignedByte();
+					int hi = in.readByte();
+					samples[i] = (short)((hi << 8) | lo);
+				}
+				in.close();
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException("Bad fixture " + AUDIO_FILE, e);
+			}
+			audio = samples;
+		}
+		return audio;
+	}
+
+	/**
+	 * One real-valued frame of the given length: the accel x axis for
+	 * accel-sized frames, audio otherwise.
+	 */
+	public static double[] signal(int length)
+	{
+		double[] x = new double[length];
+		if (length <= 128)
+		{
+			float[] ax = accel()[1];
+			for (int i = 0; i < length; i ++)
+				x[i] = ax[i];
+		}
+		else
+		{
+			short[] a = audio();
+			for (int i = 0; i < length; i ++)
+				x[i] = a[i];
+		}
+		return x;
+	}
+
+	private static InputStream open(String name)
+	{
+		InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+		if (in == null)
+			throw new IllegalStateException("Missing fixture " + name);
+		return in;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.bench;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Writes the fixture files read by Fixtures into the given directory:
+ *
+ *   java -cp target/benchmarks.jar edu.jhu.hopkinspd.bench.MakeFixtures src/main/resources/fixtures
+ *
+ * The checked-in fixtures are synthetic, from a fixed seed: walking at
+ * about 1.8 steps/s with a 5 Hz tremor on the accelerometer, and a
+ * sustained vowel at 140 Hz on the microphone. Captures from a phone in
+ * the same formats can replace them.
+ */
+public class MakeFixtures
+{
+	public static void main(String[] args) throws IOException
+	{
+		File dir = new File((args.length > 0) ? args[0] : ".");
+		dir.mkdirs();
+		Random random = new Random(20150601L);
+		writeAccel(new File(dir, Fixtures.ACCEL_FILE), random);
+		writeAudio(new File(dir, Fixtures.AUDIO_FILE), random);
+	}
+
+	private static void writeAccel(File file, Random random) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try
+		{
+			double t0 = 5000.0;
+			for (int i = 0; i < Fixtures.FIXTURE_LENGTH; i ++)
+			{
+				// Rate jitter as seen from SensorEvent.timestamp
+				double t = t0 + (i + 0.1*random.nextGaussian())/Fixtures.ACCEL_RATE;
+				double step = 2*Math.PI*1.8*t;
+				double tremor = 0.3*Math.sin(2*Math.PI*5.0*t);
+				out.writeFloat((float)t);
+				out.writeFloat((float)(0.8*Math.sin(step) + tremor + 0.05*random.nextGaussian()));
+				out.writeFloat((float)(9.81 + 2.0*Math.sin(2*step) + 0.05*random.nextGaussian()));
+				out.writeFloat((float)(0.5*Math.cos(step) + 0.5*tremor + 0.05*random.nextGaussian()));
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static void writeAudio(File file, Random random) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try
+		{
+			for (int i = 0; i < Fixtures.FIXTURE_LENGTH; i ++)
+			{
+				double t = i/Fixtures.AUDIO_RATE;
+				double f0 = 140.0*(1 + 0.01*Math.sin(2*Math.PI*4.0*t));
+				double v = 0;
+				for (int h = 1; h <= 20 && h*f0 < Fixtures.AUDIO_RATE/2; h ++)
+					v += Math.sin(2*Math.PI*h*f0*t)/h;
+				v = 4000*v + 200*random.nextGaussian();
+				short s = (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(v)));
+				out.writeByte(s & 0xff);
+				out.writeByte(s >> 8);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
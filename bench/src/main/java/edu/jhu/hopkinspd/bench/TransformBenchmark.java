@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.jhu.hopkinspd.math.FFT;
+import edu.jhu.hopkinspd.math.Matrix;
+import edu.jhu.hopkinspd.math.RealFFT;
+import edu.jhu.hopkinspd.math.Window;
+
+/**
+ * Per-frame cost of the transforms under the feature code, at the
+ * accelerometer (128) and audio (8192) frame sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformBenchmark
+{
+	@Param({"128", "8192"})
+	public int size;
+
+	private double[] signal;
+	private double[] re, im;
+	private FFT fft;
+	private RealFFT realFFT;
+	private Window window;
+	private Matrix frame, frameT;
+
+	@Setup
+	public void setup()
+	{
+		signal = Fixtures.signal(size);
+		re = new double[size];
+		im = new double[size];
+		fft = new FFT(size);
+		realFFT = new RealFFT(size);
+		window = Window.get(Window.HAMMING, size);
+
+		// size x 3 frame of accel samples, as multiplied for axis covariances
+		float[][] accel = Fixtures.accel();
+		frame = new Matrix(size, 3);
+		for (int i = 0; i < size; i ++)
+			for (int c = 0; c < 3; c ++)
+				frame.set(i, c, accel[c + 1][i]);
+		frameT = frame.transpose();
+	}
+
+	@Benchmark
+	public double[] fft()
+	{
+		System.arraycopy(signal, 0, re, 0, size);
+		Arrays.fill(im, 0);
+		fft.fft(re, im);
+		return re;
+	}
+
+	@Benchmark
+	public double[] realFFT()
+	{
+		realFFT.fft(signal, re, im);
+		return re;
+	}
+
+	@Benchmark
+	public double[] applyWindow()
+	{
+		window.applyWindow(signal, re);
+		return re;
+	}
+
+	@Benchmark
+	public Matrix matrixTimes()
+	{
+		return frameT.times(frame);
+	}
+}
@@ -60,12 +60,12 @@ import org.apache.http.params.HttpParams;
 import edu.jhu.cs.hinrg.dailyalert.android.listeners.InstanceUploaderListener;
 import edu.jhu.cs.hinrg.dailyalert.android.utilities.FileUtils;
 import edu.jhu.hopkinspd.GlobalApp;
+import edu.jhu.hopkinspd.utils.ArtifactManifest;
 
 import android.os.AsyncTask;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -106,6 +106,7 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, ArrayList<S
 			for(File uploaded : listZipFiles)
 			{
 				uploaded.delete();
+				app.getManifest().record(uploaded, ArtifactManifest.UPLOADED, 0);
 			}
 		}
 		return results;
@@ -114,14 +115,7 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, ArrayList<S
 	public File[] listAllZipFiles()
     {
 		File rootDir = new File(app.getStringPref(GlobalApp.PREF_KEY_ROOT_PATH) + "/" + GlobalApp.FORM_SUBDIR);
-		FilenameFilter fnFilter = new FilenameFilter()
-		{
-		    public boolean accept(File dir, String name)
-		    {
-		        return name.contains(".aes");
-		    }
-		};
-		return rootDir.listFiles(fnFilter);
+		return app.getManifest().listFiles(rootDir, ArtifactManifest.ENCRYPTED);
     }
 
 //    @Override
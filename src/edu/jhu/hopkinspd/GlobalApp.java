@@ -42,15 +42,16 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.text.DecimalFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Iterator;
@@ -85,7 +86,8 @@ import org.xmlpull.v1.XmlPullParserFactory;
 import edu.jhu.hopkinspd.medlog.MedDoseAdapter;
 import edu.jhu.hopkinspd.security.AESCrypt;
 import edu.jhu.hopkinspd.task.NTPSyncTask;
-import edu.jhu.hopkinspd.test.AccelCapture;
+import edu.jhu.hopkinspd.utils.ArtifactManifest;
+import edu.jhu.hopkinspd.utils.AsyncLogger;
 import edu.jhu.hopkinspd.utils.CrashReportSender;
 
 
@@ -275,6 +277,8 @@ public class GlobalApp extends Application{
 	public static final String STREAM_EXTENSION_BIN = "bin";
 	public static final String STREAM_EXTENSION_RAW = "raw";
 	public static final String STREAM_EXTENSION_CSV = "csv";
+	public static final String STREAM_EXTENSION_RAW_COLUMNAR = "rawc";
+	public static final String STREAM_EXTENSION_BIN_COLUMNAR = "binc";
 	
 	public static String RAW_DATA_EXTENSION = "raw";
 	public static String TXT_DATA_EXTENSION = "csv";
@@ -294,6 +298,7 @@ public class GlobalApp extends Application{
 	public static String STREAMS_SUBDIR = "streams";
 	public static String LOGS_SUBDIR = "logs";
 	public static String TESTS_SUBDIR = "test";
+	public static final String MANIFEST_FILE_NAME = "artifacts.manifest";
 	
 	private static final int AES_FILE_VERSION = 1;
 	
@@ -306,6 +311,7 @@ public class GlobalApp extends Application{
 	 * Server Information
 	 */
 	public static final String uploadURL = ServerConfig.upload_url;
+	public static final String uploadChunkURL = ServerConfig.upload_chunk_url;
 	public static final String LogURL = ServerConfig.crashLog_url;
 	public static final String URL_APK_VERSION = ServerConfig.apkVersion_url;
 	public static final String URL_APK = ServerConfig.apk_url;
@@ -328,7 +334,13 @@ public class GlobalApp extends Application{
 	 * Tests
 	 */
 //	private static DataOutputStream testStreamFile = null;
-	public static double[][] streamBuffer = null;
+	private AESCrypt aesCrypt = null;
+	private String aesKeyCache = null;
+	private String aesKeyPassword = null;
+	private String aesKeyIv = null;
+	private ArtifactManifest manifest = null;
+	private String manifestRoot = null;
+	private AsyncLogger logger = null;
 	
 //	public static final int TEST_VOICE = 0;
 //	public static final int TEST_BALANCE = 1;
@@ -762,6 +774,57 @@ public class GlobalApp extends Application{
 		return PreferenceManager.getDefaultSharedPreferences(this);
 	}
 
+	/**
+	 * Manifest of the data files under the root path. The services query
+	 * it instead of listing the data directories. It is reconciled with
+	 * those directories once per process, when it is loaded.
+	 */
+	public synchronized ArtifactManifest getManifest()
+	{
+		String rootPath = getStringPref(PREF_KEY_ROOT_PATH);
+		if (manifest == null || !rootPath.equals(manifestRoot))
+		{
+			manifest = new ArtifactManifest(new File(rootPath, MANIFEST_FILE_NAME));
+			manifestRoot = rootPath;
+			reconcileManifest(rootPath);
+		}
+		return manifest;
+	}
+	
+	// Catch up with files a crash or kill left unrecorded or half written
+	private void reconcileManifest(String rootPath)
+	{
+		dropUnfinishedFiles(new File(rootPath, UPLOAD_SUBDIR));
+		dropUnfinishedFiles(new File(rootPath, FORM_SUBDIR));
+		recordExistingFiles(new File(rootPath, STREAMS_SUBDIR), null, ArtifactManifest.SEALED);
+		recordExistingFiles(new File(rootPath, LOGS_SUBDIR), ".log", ArtifactManifest.OPEN);
+		recordExistingFiles(new File(rootPath, TESTS_SUBDIR), null, ArtifactManifest.SEALED);
+		recordExistingFiles(new File(rootPath, UPLOAD_SUBDIR), "." + AES_FILE_EXTENSION, ArtifactManifest.ENCRYPTED);
+		recordExistingFiles(new File(rootPath, FORM_SUBDIR), "." + AES_FILE_EXTENSION, ArtifactManifest.ENCRYPTED);
+	}
+	
+	// Encrypted files still open were cut off mid-write, their sources are kept
+	private void dropUnfinishedFiles(File dir)
+	{
+		for (File f : manifest.listFiles(dir, ArtifactManifest.OPEN))
+		{
+			f.delete();
+			manifest.remove(f);
+		}
+	}
+	
+	private void recordExistingFiles(File dir, String extension, String state)
+	{
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files)
+		{
+			if (f.isFile() && (extension == null || f.getName().endsWith(extension)) && !manifest.contains(f))
+				manifest.record(f, state, state.equals(ArtifactManifest.OPEN) ? 0 : f.length());
+		}
+	}
+
 	public void createDir() {
 		String sdCardPath = Environment.getExternalStorageDirectory().toString();
         File subDir = new File(sdCardPath + "/" + getString(R.string.app_name));
@@ -803,6 +866,10 @@ public class GlobalApp extends Application{
 			String sdCardPath = Environment.getExternalStorageDirectory().toString();
 	        File subDir = new File(sdCardPath + "/" + getString(R.string.app_name));
 	        fileDeleteRecursive(subDir);
+	        synchronized (this)
+	        {
+	        	manifest = null;
+	        }
 //	        for(File f : subDir.listFiles()){
 //	        	if(f!=null && f.isFile())
 //	        		f.delete();
@@ -873,7 +940,8 @@ public class GlobalApp extends Application{
 	    {
 			if(!file.exists())
 				file.createNewFile();
-			logTextStream = new BufferedWriter(new FileWriter(file, true));
+			logTextStream = getLogger().open(file);
+			getManifest().record(file, ArtifactManifest.OPEN, 0);
 		}
 	    catch (IOException e)
 		{
@@ -882,6 +950,23 @@ public class GlobalApp extends Application{
 		return logTextStream;
     }
 	
+	// Writes all log files, so callers never block on the SD card
+	private synchronized AsyncLogger getLogger()
+	{
+		if (logger == null)
+		{
+			logger = new AsyncLogger(AsyncLogger.DEFAULT_MAX_FILE_BYTES)
+			{
+				@Override
+				protected void onRotated(File file, File rotated)
+				{
+					getManifest().record(rotated, ArtifactManifest.OPEN, 0);
+				}
+			};
+		}
+		return logger;
+	}
+	
 	public String prettyDateString(Date time)
 	{
 		return DateFormat.format("yyyy/MM/dd kk:mm:ss", time).toString();
@@ -892,6 +977,15 @@ public class GlobalApp extends Application{
     public void writeLogTextLine(BufferedWriter logTextStream,
     		String message, boolean toast)
     {
+    	if (logTextStream instanceof AsyncLogger.Handle)
+    	{
+    		((AsyncLogger.Handle)logTextStream).writeLine(System.currentTimeMillis(), message, toast);
+	        if (toast)
+	        {
+	        	Toast.makeText(this, getString(R.string.app_name) + ": " + message, Toast.LENGTH_SHORT).show();
+	        }
+    		return;
+    	}
         try
         {
         	Date now = new Date();
@@ -1079,11 +1173,6 @@ public class GlobalApp extends Application{
 		startActivity(i);
 	}
 	
-	public void allocateStreamBuffer(int bufferLength, int entries)
-	{
-		streamBuffer = new double[bufferLength][entries];
-	}
-	
 	public String getMedTrackerFilename(Date time)
 	{
 		Resources res = getResources();
@@ -1164,6 +1253,7 @@ public class GlobalApp extends Application{
 			out.flush();
 			out.finish();
 			out.close();
+			getManifest().record(new File(zipFilename), ArtifactManifest.SEALED);
 			
 			clearAllDataFiles();
 		}
@@ -1182,6 +1272,7 @@ public class GlobalApp extends Application{
             if (!dfl.persist)  
             {  
             	dfl.f.delete();
+            	app.getManifest().remove(dfl.f);
                 itr.remove();  
             }
         }
@@ -1194,15 +1285,35 @@ public class GlobalApp extends Application{
 			Log.i(tag, "encrypting " + filename);
 			
 			
-			AESCrypt aes = new AESCrypt(this);
-			
 			String pwd = getStringPref(PREF_KEY_ENCRYPT_KEY, "");
 			if(pwd.equals(""))
 				Log.e(tag, "user password is missing!");
 			else
 			{
-				String aesStringKey = aes.generateAESStringKey(pwd);
-				aes.encrypt(AES_FILE_VERSION, filename, aesFilename, aesStringKey);
+				// Recorded before the first byte, so an interrupted write is
+				// found when the manifest is next loaded
+				File aesFile = new File(aesFilename);
+				getManifest().record(aesFile, ArtifactManifest.OPEN, 0);
+				boolean done = false;
+				try
+				{
+					AESCrypt aes = getAESCrypt();
+					synchronized (aes)
+					{
+						String aesStringKey = getAESStringKey(aes, pwd);
+						aes.encrypt(AES_FILE_VERSION, filename, aesFilename, aesStringKey);
+					}
+					done = true;
+				}
+				finally
+				{
+					if (!done)
+					{
+						aesFile.delete();
+						getManifest().remove(aesFile);
+					}
+				}
+				getManifest().record(aesFile, ArtifactManifest.ENCRYPTED);
 				Log.i(tag, "encrypted " + aesFilename);
 			}
 		}
@@ -1212,6 +1323,87 @@ public class GlobalApp extends Application{
 		}
 	}
 	
+	// Shared encrypter for encryptFile(), built once per process
+	private synchronized AESCrypt getAESCrypt() throws GeneralSecurityException
+	{
+		if (aesCrypt == null)
+			aesCrypt = new AESCrypt(this);
+		return aesCrypt;
+	}
+	
+	/**
+	 * Key 1 derived from the password and IV 1, which takes 8192 rounds of
+	 * SHA-256. The last result is kept, so it is only recomputed when the
+	 * password (or the IV) changes.
+	 */
+	private synchronized String getAESStringKey(AESCrypt aes, String pwd)
+	{
+		String iv1 = Arrays.toString(aes.getIv1());
+		if (aesKeyCache == null || !pwd.equals(aesKeyPassword) || !iv1.equals(aesKeyIv))
+		{
+			aesKeyCache = aes.generateAESStringKey(pwd);
+			aesKeyPassword = pwd;
+			aesKeyIv = iv1;
+		}
+		return aesKeyCache;
+	}
+	
+	public synchronized void clearAESKeyCache()
+	{
+		aesKeyCache = null;
+		aesKeyPassword = null;
+		aesKeyIv = null;
+	}
+
+	/**
+	 * Opens aesFilename for writing through an AES encrypting stream, so
+	 * plaintext never reaches the card. Returns null if there is no user
+	 * password or encryption is unavailable. Closing the stream completes
+	 * the file. The file is recorded OPEN, the caller moves it on to
+	 * ENCRYPTED once the stream is closed.
+	 */
+	public OutputStream openEncryptedFile(String tag, String aesFilename)
+	{
+		String pwd = getStringPref(PREF_KEY_ENCRYPT_KEY, "");
+		if(pwd.equals(""))
+		{
+			Log.e(tag, "user password is missing!");
+			return null;
+		}
+		OutputStream out = null;
+		try
+		{
+			// The stream outlives this call, so it gets its own AESCrypt
+			AESCrypt shared = getAESCrypt();
+			String aesStringKey;
+			synchronized (shared)
+			{
+				aesStringKey = getAESStringKey(shared, pwd);
+			}
+			AESCrypt aes = new AESCrypt(this, shared.getIv1());
+			getManifest().record(new File(aesFilename), ArtifactManifest.OPEN, 0);
+			out = new BufferedOutputStream(new FileOutputStream(aesFilename), 65536);
+			return aes.encryptingStream(AES_FILE_VERSION, out, aesStringKey);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			if (out != null)
+			{
+				try
+				{
+					out.close();
+				}
+				catch (IOException e1)
+				{
+				}
+			}
+			new File(aesFilename).delete();
+			getManifest().remove(new File(aesFilename));
+		}
+		return null;
+	}
+
 	public String encryptTestUploadZipFile(String zipFilename)
 	{
 		String aesFilename = null;
@@ -1241,6 +1433,7 @@ public class GlobalApp extends Application{
 			File newFile = new File(filename);
 			testStreamFile = new DataOutputStream(new FileOutputStream(newFile));
 			dataFilesList.add(new DataFileListItem(newFile, false));
+			getManifest().record(newFile, ArtifactManifest.OPEN, 0);
 		}
 		catch (FileNotFoundException e)
 		{
@@ -1265,107 +1458,6 @@ public class GlobalApp extends Application{
 		}
 	}
 	
-	public void writeTestStreamFrames(DataOutputStream testStreamFile, int bufferCount, int outputFormat)
-	{
-		double item = 0;
-		if (testStreamFile != null)
-		{
-			try
-			{
-				for (int j = 0; j < bufferCount; j ++)
-				{
-					for (int i = 0; i < streamBuffer[j].length; i ++)
-					{
-						item = streamBuffer[j][i];
-						switch (outputFormat)
-						{
-						// Text strings in CSV format
-						case OUTPUT_FORMAT_TXT:
-							if (i < (streamBuffer[j].length - 1))
-								testStreamFile.writeBytes(Double.toString(item) + ",");
-							else
-								testStreamFile.writeBytes(Double.toString(item));
-							break;
-
-							// Raw 64-bit, double big-endian format
-						case OUTPUT_FORMAT_DOUBLE:
-							testStreamFile.writeDouble(item);
-							break;
-
-							// Raw 32-bit, float big-endian format
-						case OUTPUT_FORMAT_FLOAT:
-							testStreamFile.writeFloat((float)item);
-							break;
-						}
-					}
-
-					// New line for CSV files
-					if (outputFormat == OUTPUT_FORMAT_TXT)
-					{
-						testStreamFile.writeByte(10);
-					}
-
-				}
-
-				testStreamFile.flush();
-				
-			}
-			catch (IOException e)
-			{
-				e.printStackTrace();
-			}
-		}
-	}
-	
-	public void writeTestStreamFrames(DataOutputStream testStreamFile, long tsp, float[] values, int outputFormat)
-    {
-	    double dt = (double) (tsp/1000000000.0d);
-        if (testStreamFile != null)
-        {
-            try
-            {           
-                switch (outputFormat)
-                {
-                // Text strings in CSV format
-                case OUTPUT_FORMAT_TXT:
-                    int i = 0;
-              
-                    testStreamFile.writeBytes(Double.toString(dt) + ",");
-                    for(i=0;i<values.length;i++)
-                        if (i < (values.length - 1))
-                        {    
-                            testStreamFile.writeBytes(Double.toString(values[i]) + ",");
-                        }else
-                            testStreamFile.writeBytes(Double.toString(values[i]));
-                    testStreamFile.writeByte(10);
-                    break;
-                    // Raw 64-bit, double big-endian format
-                case OUTPUT_FORMAT_DOUBLE:
-                    testStreamFile.writeDouble(dt);
-                    for(i=0;i<values.length;i++)
-                        testStreamFile.writeDouble(values[i]);
-                    break;
-
-                    // Raw 32-bit, float big-endian format
-                case OUTPUT_FORMAT_FLOAT:
-                    testStreamFile.writeFloat((float)dt);
-                    for(i=0;i<values.length;i++)
-                        testStreamFile.writeFloat(values[i]);
-                    break;
-                }
-     
-
-                
-                
-                                
-            }
-            catch (IOException e)
-            {
-                e.printStackTrace();
-            }
-        }
-    }
-	
 	public FileOutputStream openRawDataFile(String filename)
 	{
 		FileOutputStream os = null;
@@ -1374,6 +1466,7 @@ public class GlobalApp extends Application{
 			File newFile = new File(filename);
 			os = new FileOutputStream(newFile);
 			GlobalApp.dataFilesList.add(new DataFileListItem(newFile, false));	// Raw data files are not persistent
+			getManifest().record(newFile, ArtifactManifest.OPEN, 0);
 		}
 		catch (FileNotFoundException e)
 		{
@@ -34,7 +34,6 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -47,6 +46,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
@@ -59,6 +64,10 @@ import org.apache.http.impl.client.DefaultHttpClient;
 
 
 
+import edu.jhu.hopkinspd.utils.ArtifactManifest;
+import edu.jhu.hopkinspd.utils.ChunkedUploader;
+import edu.jhu.hopkinspd.utils.RateLimiter;
+
 import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
@@ -142,8 +151,9 @@ public class SyncService extends IntentService
 				inetType = "Mobile";
 				app.writeLogTextLine(logTextStream, "Using mobile internet", false);
 			}
-			// run upload task
-			new Thread(uploadTask).run();
+			// run upload task, blocking this service's worker thread until
+			// every upload has finished
+			uploadTask.run();
 			// run auto update if recording is not running, sdcard and battery is ok
 			boolean enabled = app.getBooleanPref(getString(R.string.autoUpdateOn));
 			boolean recording = app.getBooleanPref(GlobalApp.PREF_KEY_SWITCH);
@@ -306,25 +316,71 @@ public class SyncService extends IntentService
 	    		int zipListLength = listAesFiles.length; 
 				app.writeLogTextLine(logTextStream, zipListLength + " session(s) now pending upload", false);
 				
-				// Upload files to the server
-				String result = app.uploadFiles(TAG, listAesFiles);
-				// Post processing: clean uploaded files
-	            if (result.equals("Successful"))
+				// Upload files on a bounded pool of workers in resumable chunks,
+				// all sharing the byte rate cap of the current connection type
+				int workers = Math.min(zipListLength, getIntStringPref(getString(R.string.uploadWorkers),
+						Integer.parseInt(getString(R.string.default_upload_workers))));
+				RateLimiter limiter = null;
+				int rate = inetType.equals("WiFi") ?
+						getIntStringPref(getString(R.string.uploadRateWifi),
+								Integer.parseInt(getString(R.string.default_upload_rate_wifi))) :
+						getIntStringPref(getString(R.string.uploadRateMobile),
+								Integer.parseInt(getString(R.string.default_upload_rate_mobile)));
+				if (rate > 0)
+					limiter = new RateLimiter(rate);
+				app.writeLogTextLine(logTextStream, "Upload workers: " + workers + ", rate cap (bytes/s): " + rate, false);
+
+				ExecutorService pool = Executors.newFixedThreadPool(Math.max(workers, 1));
+				List<Future<String>> results = new ArrayList<Future<String>>();
+				for (File file : listAesFiles)
+					results.add(pool.submit(new UploadFileTask(file, limiter)));
+				pool.shutdown();
+
+				int uploadedCount = 0;
+				String result = "";
+				for (int i = 0; i < zipListLength; i ++)
+				{
+					File file = listAesFiles[i];
+					String error;
+					try
+					{
+						error = results.get(i).get();
+					}
+					catch (InterruptedException e)
+					{
+						pool.shutdownNow();
+						Thread.currentThread().interrupt();
+						error = "interrupted";
+					}
+					catch (ExecutionException e)
+					{
+						e.printStackTrace();
+						error = String.valueOf(e.getCause());
+					}
+
+					if (error == null)
+					{
+						uploadedCount ++;
+						app.writeLogTextLine(logTextStream, "Upload succeeded: " + file.getName(), false);
+					}
+					else
+					{
+						result = error;
+						app.writeLogTextLine(logTextStream, "Upload failed: " + file.getName() + ", " + result, false);
+					}
+				}
+				
+	            if (uploadedCount == zipListLength)
 	            {
 	            	sendServiceMessage(zipListLength + " Session(s) successfully uploaded via " + inetType + " network.");
-	            	for(File uploaded : listAesFiles){
-	            		uploaded.delete();
-	            		app.writeLogTextLine(logTextStream, "Upload succeeded: " + uploaded.getName(), false);
-	            	}
-		            
 	            }
 	            else
 	            {
 		        	app.writeLogTextLine(logTextStream, "Upload failed, " + result, false);
-		        	if(result.length()>0)
-		        		sendServiceMessage("Upload failed, " + result );
+		        	if(result != null && result.length()>0)
+		        		sendServiceMessage(uploadedCount + " of " + zipListLength + " session(s) uploaded, " + result);
 		        	else
-		        		sendServiceMessage("Upload failed.");
+		        		sendServiceMessage(uploadedCount + " of " + zipListLength + " session(s) uploaded.");
 	            }
 				
 			}
@@ -337,6 +393,62 @@ public class SyncService extends IntentService
 		}
 		
 	};
+	
+	/**
+	 * Uploads and then deletes one file, returning null on success or the
+	 * error message. Each task has its own uploader, since their chunk
+	 * buffers cannot be shared between workers.
+	 */
+	private class UploadFileTask implements Callable<String>
+	{
+		private final File file;
+		private final RateLimiter limiter;
+		
+		UploadFileTask(File file, RateLimiter limiter)
+		{
+			this.file = file;
+			this.limiter = limiter;
+		}
+		
+		@Override
+		public String call()
+		{
+			ChunkedUploader uploader = new ChunkedUploader(GlobalApp.uploadChunkURL,
+					app.getStringPref(GlobalApp.PREF_KEY_USERID), ChunkedUploader.DEFAULT_CHUNK_SIZE);
+			uploader.setRateLimiter(limiter);
+			String error = null;
+			int status = uploader.upload(file);
+			if (status == ChunkedUploader.UPLOAD_UNSUPPORTED)
+			{
+				// Server without the chunk endpoint, post the whole file
+				String response = app.uploadFiles(TAG, new File[] {file});
+				if (!response.equals("Successful"))
+					error = response;
+			}
+			else if (status == ChunkedUploader.UPLOAD_FAILED)
+			{
+				error = uploader.getLastError();
+			}
+			if (error == null)
+			{
+				file.delete();
+				app.getManifest().record(file, ArtifactManifest.UPLOADED, 0);
+			}
+			return error;
+		}
+	}
+	
+	private int getIntStringPref(String key, int defaultValue)
+	{
+		try
+		{
+			return Integer.parseInt(app.getStringPref(key));
+		}
+		catch (NumberFormatException e)
+		{
+			return defaultValue;
+		}
+	}
  
 	
 	
@@ -344,17 +456,9 @@ public class SyncService extends IntentService
 
 	public File[] listAllAESFiles()
     {
-		// get all zip files in upload folder
+		// get all encrypted session files in upload folder
 		File rootDir = new File(app.getStringPref(GlobalApp.PREF_KEY_ROOT_PATH) + "/" + GlobalApp.UPLOAD_SUBDIR);
-		FilenameFilter fnFilter = new FilenameFilter()
-		{
-		    public boolean accept(File dir, String name)
-		    {
-		        return name.contains(".aes");
-		    }
-		};
-		File[] files = rootDir.listFiles(fnFilter);
-		return files;
+		return app.getManifest().listFiles(rootDir, ArtifactManifest.ENCRYPTED);
 //		// get all zip files in test folder
 //		rootDir = new File(app.getStringPref(GlobalApp.PREF_KEY_ROOT_PATH) + "/" + GlobalApp.TEST_UPLOAD_SUBDIR);
 //		File[] testFiles = rootDir.listFiles(fnFilter);
@@ -383,38 +487,42 @@ public class SyncService extends IntentService
         Calendar cal = Calendar.getInstance();
         cal.add(Calendar.DATE, -outOfDays);
         Date outDay = cal.getTime();
-        FilenameFilter fnFilter = new FilenameFilter()
-        {
-            public boolean accept(File dir, String name)
-            {
-                return name.endsWith(".bin") 
-                        | name.endsWith(".csv") 
-                        | name.endsWith(".raw") 
-                        | name.endsWith(".txt")
-                        | name.endsWith(".zip")
-                        | name.endsWith(".log");
-            }
-        };
-        File[] files = dir.listFiles(fnFilter);
+        ArtifactManifest manifest = app.getManifest();
+        File[] files = manifest.listFiles(dir, ArtifactManifest.OPEN,
+                ArtifactManifest.SEALED, ArtifactManifest.ENCRYPTED);
         SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
-        if(files != null)
-            for(File file: files){
-                String fileName = file.getName();
-                String[] items = fileName.split("_");
-                if(items.length >= 2){
-                    String dayStr = items[items.length-2];
-                    try {
-                        Date day = format.parse(dayStr);
-                        if(day.before(outDay)){
-                            file.delete();
-                            Log.i(TAG, "clean old file:"+fileName);
-                        }
-                    } catch (ParseException e) {
-                        Log.e(TAG,  "cleanOldFiles parse exception");
+        for(File file: files){
+            String fileName = file.getName();
+            if (!isCleanableFile(fileName))
+                continue;
+            String[] items = fileName.split("_");
+            if(items.length >= 2){
+                String dayStr = items[items.length-2];
+                try {
+                    Date day = format.parse(dayStr);
+                    if(day.before(outDay)){
+                        file.delete();
+                        manifest.remove(file);
+                        Log.i(TAG, "clean old file:"+fileName);
                     }
-                    
+                } catch (ParseException e) {
+                    Log.e(TAG,  "cleanOldFiles parse exception");
                 }
+                
             }
+        }
     }
 	
+	private static boolean isCleanableFile(String name)
+	{
+        return name.endsWith(".bin") 
+                | name.endsWith(".csv") 
+                | name.endsWith(".raw") 
+                | name.endsWith(".rawc") 
+                | name.endsWith(".binc") 
+                | name.endsWith(".txt")
+                | name.endsWith(".zip")
+                | name.endsWith(".log");
+	}
+	
 }
@@ -270,6 +270,7 @@ OnSharedPreferenceChangeListener
 		{
 			Preference pref = findPreference(key);
 			pref.setSummary("******");
+			app.clearAESKeyCache();
 		}
 		else if (key.equals(GlobalApp.PREF_KEY_BATTERY_MIN_LEVEL))
 		{
@@ -359,6 +360,9 @@ OnSharedPreferenceChangeListener
 		else if(key.equals(getResources().getString(R.string.test_gyro))){
 		    TestConfig.gyro_on = app.getBooleanPref(app.getString(R.string.test_gait));
 		}
+		else if(key.equals(getResources().getString(R.string.test_compass))){
+		    TestConfig.compass_on = app.getBooleanPref(app.getString(R.string.test_compass));
+		}
 	}
 	
 	
@@ -34,6 +34,8 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.util.Date;
 
+import edu.jhu.hopkinspd.utils.ArtifactManifest;
+
 import android.app.IntentService;
 import android.content.Intent;
 import android.util.Log;
@@ -85,8 +87,9 @@ public class WatchDogService extends IntentService{
 		String streamsPath = rootPath + "/" + GlobalApp.STREAMS_SUBDIR;
 		File streamsDir = new File(streamsPath);
 		long last = 0;
-		File[] files = streamsDir.listFiles();
-		if(files != null)
+		// Only the stream files still being written can show recent activity
+		File[] files = app.getManifest().listFiles(streamsDir, ArtifactManifest.OPEN);
+		if(files.length > 0)
 		{
     		for(File streamFile : files){
     			long lastM = streamFile.lastModified();
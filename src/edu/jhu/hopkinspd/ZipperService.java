@@ -38,6 +38,8 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -49,6 +51,8 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import edu.jhu.hopkinspd.stream.StreamWriter;
+import edu.jhu.hopkinspd.utils.ArtifactManifest;
+import edu.jhu.hopkinspd.utils.AsyncLogger;
 
 import android.app.IntentService;
 import android.content.Intent;
@@ -95,22 +99,28 @@ public class ZipperService extends IntentService
 
     	File[] listFiles = listStreamAndLogFiles(lastStartTimeStamp);
     	if(listFiles != null && listFiles.length>0){
-    		String zipFileName = rootPath + "/" + sessionName + ".zip";
-        	zipFiles(listFiles, zipFileName);
-        	app.writeLogTextLine(logTextStream, "encrypting zipped files", false);
         	String uploadPath = app.getStringPref(GlobalApp.PREF_KEY_ROOT_PATH, "") + "/" + GlobalApp.UPLOAD_SUBDIR;
     		String aesFilename = uploadPath + "/" + sessionName + ".zip." + GlobalApp.AES_FILE_EXTENSION;
 
-        	app.encryptFile(TAG, zipFileName, aesFilename);
-        	// XXX delete the zip file
-    		new File(zipFileName).delete();
-            
-        	app.writeLogTextLine(logTextStream, "Zipping time stamp: " + lastStartTimeStamp, false);
-    		for (File lf: listFiles)
-    		{
-    			app.writeLogTextLine(logTextStream, lf.getName(), false);
-    		}
-    		emptyLogFilesAndDeleteStreamFiles(listFiles);
+    		// Zip straight into the encrypted upload file, no plaintext zip on the card
+        	app.writeLogTextLine(logTextStream, "zipping and encrypting files", false);
+        	OutputStream aesOut = app.openEncryptedFile(TAG, aesFilename);
+        	if (aesOut == null || !zipFiles(listFiles, aesOut))
+        	{
+        		new File(aesFilename).delete();
+        		app.getManifest().remove(new File(aesFilename));
+        		app.writeLogTextLine(logTextStream, "Zipping failed, stream files kept", false);
+        	}
+        	else
+        	{
+	        	app.writeLogTextLine(logTextStream, "Zipping time stamp: " + lastStartTimeStamp, false);
+	    		for (File lf: listFiles)
+	    		{
+	    			app.writeLogTextLine(logTextStream, lf.getName(), false);
+	    		}
+	    		app.getManifest().record(new File(aesFilename), ArtifactManifest.ENCRYPTED);
+	    		emptyLogFilesAndDeleteStreamFiles(listFiles);
+        	}
     	}
     	
     	
@@ -148,23 +158,19 @@ public class ZipperService extends IntentService
     	// list log files
 		File streamDir = new File(app.getStringPref(GlobalApp.PREF_KEY_ROOT_PATH)+"/"+GlobalApp.STREAMS_SUBDIR);
 		File logDir = new File(app.getStringPref(GlobalApp.PREF_KEY_ROOT_PATH)+"/"+GlobalApp.LOGS_SUBDIR);
-		final String uid = uniqueTimeStamp;
-		FilenameFilter fnFilter = new FilenameFilter()
+		ArtifactManifest manifest = app.getManifest();
+		ArrayList<File> list = new ArrayList<File>();
+		for (File f : manifest.listFiles(streamDir, ArtifactManifest.OPEN, ArtifactManifest.SEALED))
 		{
-		    public boolean accept(File dir, String name)
-		    {
-		        return (name.contains(uid) &
-		        		(name.contains(".bin") | name.contains(".csv") | name.contains(".raw") | name.contains(".txt")))
-		        	  | name.contains(".log");
-		    }
-		};
-		File[] streamFiles = streamDir.listFiles(fnFilter);
-		File[] logFiles = logDir.listFiles(fnFilter);
-		if (streamFiles != null && streamFiles.length > 0)
-		{	
-			ArrayList<File> list = new ArrayList<File>(Arrays.asList(streamFiles));
-			list.addAll(Arrays.asList(logFiles));
-			File[] all = new File[streamFiles.length + logFiles.length];
+			String name = f.getName();
+			if (name.contains(uniqueTimeStamp) &
+					(name.contains(".bin") | name.contains(".csv") | name.contains(".raw") | name.contains(".txt")))
+				list.add(f);
+		}
+		if (list.size() > 0)
+		{
+			list.addAll(Arrays.asList(manifest.listFiles(logDir, ArtifactManifest.OPEN)));
+			File[] all = new File[list.size()];
 			list.toArray(all);
 			return all;
 		}
@@ -176,7 +182,11 @@ public class ZipperService extends IntentService
 	private void emptyLogFilesAndDeleteStreamFiles(File[] listFiles) {
 		
 		for(File file : listFiles){
-			if(file.getName().endsWith("log")){
+			if(AsyncLogger.isRotatedFile(file)){
+				// Rotated logs are never written again
+				file.delete();
+				app.getManifest().record(file, ArtifactManifest.ZIPPED, 0);
+			}else if(file.getName().endsWith("log")){
 				// Empty log files
 				PrintWriter writer;
 				try {
@@ -190,6 +200,7 @@ public class ZipperService extends IntentService
 			}else{
 				// Delete stream files
 				file.delete();
+				app.getManifest().record(file, ArtifactManifest.ZIPPED, 0);
 			}
 		}
 	}
@@ -208,15 +219,30 @@ public class ZipperService extends IntentService
     }
     
     public void zipFiles(File[] listFiles, String zipFileName)
+    {
+    	try
+    	{
+    		zipFiles(listFiles, new BufferedOutputStream(new FileOutputStream(zipFileName)));
+    	}
+    	catch (FileNotFoundException e)
+    	{
+    		app.writeLogTextLine(logTextStream, "Zip service exception:" + e.getLocalizedMessage(), false);
+    	}
+    }
+    
+    /**
+     * Zips the files into dest and closes it. Returns false if anything failed.
+     */
+    public boolean zipFiles(File[] listFiles, OutputStream dest)
     {
     	app.writeLogTextLine(logTextStream, "Zip files started", false);
     	final int bufferSize = 65536;
+    	boolean ok = true;
     	
+    	ZipOutputStream out = new ZipOutputStream(dest);
     	try
     	{
     		BufferedInputStream origin = null;
-    		FileOutputStream dest = new FileOutputStream(zipFileName);
-    		ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(dest));
 
     		byte data[] = new byte[bufferSize];
 
@@ -237,13 +263,23 @@ public class ZipperService extends IntentService
     		}
 			out.flush();
 			out.finish();
-    		out.close();
     	}
     	catch (Exception e)
     	{
+    		ok = false;
+    		app.writeLogTextLine(logTextStream, "Zip service exception:" + e.getLocalizedMessage(), false);
+    	}
+    	try
+    	{
+    		out.close();
+    	}
+    	catch (IOException e)
+    	{
+    		ok = false;
     		app.writeLogTextLine(logTextStream, "Zip service exception:" + e.getLocalizedMessage(), false);
     	}
     	app.writeLogTextLine(logTextStream, "Zip files end", false);
+    	return ok;
     }
     
 //    public void deleteFiles(File[] list)
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.math;
+
+import java.util.Arrays;
+
+/**
+ * Audio frame features: L1, L2 and Linf norms of the samples, mean power
+ * in each frequency band, and mel cepstral coefficients of the Hamming
+ * windowed, zero-padded frame.
+ */
+public class AudioFeatures implements FrameFeatures
+{
+	private int fftSize;
+	private int numCoeffs;
+	private double[] bandEdges;
+	public int[] bandIdx;
+	private RealFFT fft;
+	private MFCC mfcc;
+	private Window win = null;
+	private double[] fftBufferR, fftBufferI;
+	private double[] norms = new double[3];
+	private boolean loaded = false;
+
+	public AudioFeatures(int fftSize, int numCoeffs, int melBands, double sampleRate, double[] bandEdges)
+	{
+		this.fftSize = fftSize;
+		this.numCoeffs = numCoeffs;
+		this.bandEdges = bandEdges;
+		fft = new RealFFT(fftSize);
+		mfcc = new MFCC(fftSize, numCoeffs, melBands, sampleRate);
+		fftBufferR = new double[fftSize];
+		fftBufferI = new double[fftSize/2 + 1];
+		
+		bandIdx = new int[bandEdges.length];
+		for (int i = 0; i < bandEdges.length; i ++)
+		{
+			bandIdx[i] = Math.round((float)bandEdges[i]*((float)fftSize/(float)sampleRate));
+		}
+	}
+	
+	public int fftSize()
+	{
+		return fftSize;
+	}
+	
+	// Window matching the frame length, converted and windowed in one pass
+	private Window window(int samples)
+	{
+		if (win == null || win.n != samples)
+			win = Window.get(Window.HAMMING, samples);
+		return win;
+	}
+	
+	public void load(short[] data, int samples)
+	{
+		norms(data, samples, norms, 0);
+		window(samples).applyWindow(data, fftBufferR);
+		transform(samples);
+	}
+	
+	public void load(double[] data, int samples)
+	{
+		norms(data, samples, norms, 0);
+		window(samples).applyWindow(data, fftBufferR);
+		transform(samples);
+	}
+	
+	// L1, L2 and Linf norms of the first samples entries of data
+	public static void norms(short[] data, int samples, double[] out, int offset)
+	{
+		double l1 = 0, l2 = 0, linf = 0;
+		for (int i = 0; i < samples; i ++)
+		{
+			double a = Math.abs((double)data[i]);
+			l1 += a;
+			l2 += a*a;
+			linf = Math.max(a, linf);
+		}
+		out[offset] = l1/samples;
+		out[offset + 1] = Math.sqrt(l2/samples);
+		out[offset + 2] = linf;
+	}
+	
+	public static void norms(double[] data, int samples, double[] out, int offset)
+	{
+		double l1 = 0, l2 = 0, linf = 0;
+		for (int i = 0; i < samples; i ++)
+		{
+			double a = Math.abs(data[i]);
+			l1 += a;
+			l2 += a*a;
+			linf = Math.max(a, linf);
+		}
+		out[offset] = l1/samples;
+		out[offset + 1] = Math.sqrt(l2/samples);
+		out[offset + 2] = linf;
+	}
+	
+	// Real-input FFT, spectrum overwrites the first half of the buffer
+	private void transform(int samples)
+	{
+		Arrays.fill(fftBufferR, samples, fftSize, 0);
+		fft.fft(fftBufferR, fftBufferR, fftBufferI);
+		loaded = true;
+	}
+	
+	// PSD across frequency band ranges of the loaded frame
+	public int bandPowers(double[] out, int offset)
+	{
+		for (int b = 0; b < (bandEdges.length - 1); b ++)
+		{
+			int j = bandIdx[b];
+			int k = bandIdx[b+1];
+			double accum = 0;
+			for (int h = j; h < k; h ++)
+			{
+				accum += fftBufferR[h]*fftBufferR[h] + fftBufferI[h]*fftBufferI[h];
+			}
+			out[offset + b] = accum/((double)(k - j));
+		}
+		return bandEdges.length - 1;
+	}
+	
+	public int cepstrum(double[] out, int offset)
+	{
+		mfcc.cepstrum(fftBufferR, fftBufferI, out, offset);
+		return numCoeffs;
+	}
+
+	@Override
+	public int featureCount()
+	{
+		return 3 + (bandEdges.length - 1) + numCoeffs;
+	}
+
+	@Override
+	public int extract(double[] features, int offset)
+	{
+		if (!loaded)
+			return 0;
+		int f = offset;
+		features[f++] = norms[0];
+		features[f++] = norms[1];
+		features[f++] = norms[2];
+		f += bandPowers(features, f);
+		f += cepstrum(features, f);
+		return f - offset;
+	}
+
+	@Override
+	public void clear()
+	{
+		loaded = false;
+	}
+}
@@ -37,6 +37,9 @@ public class FFT
 	// Lookup tables.  Only need to recompute when size of FFT changes.
 	double[] cos;
 	double[] sin;
+	float[] cosF;
+	float[] sinF;
+	int[] bitReverse;
 
 	public FFT(int n)
 	{
@@ -53,11 +56,33 @@ public class FFT
 		cos = new double[n/2];
 		sin = new double[n/2];
 
+		cosF = new float[n/2];
+		sinF = new float[n/2];
+
 		for(int i=0; i<n/2; i++)
 		{
 			cos[i] = Math.cos(-2*Math.PI*i/n);
 			sin[i] = Math.sin(-2*Math.PI*i/n);
+			cosF[i] = (float)cos[i];
+			sinF[i] = (float)sin[i];
 		}
+
+		// Bit-reversal permutation, so fft() doesn't have to rebuild it per call
+		bitReverse = new int[n];
+		for (int i=0; i<n; i++)
+		{
+			int r = 0;
+			for (int b=0; b<m; b++)
+			{
+				r |= ((i >> b) & 1) << (m-1-b);
+			}
+			bitReverse[i] = r;
+		}
+	}
+
+	public int size()
+	{
+		return n;
 	}
 
 
@@ -87,18 +112,59 @@ public class FFT
 		double c,s,t1,t2;
 
 		// Bit-reverse
-		j = 0;
-		n2 = n/2;
 		for (i=1; i < n - 1; i++)
+		{
+			j = bitReverse[i];
+			if (i < j)
+			{
+				t1 = re[i];
+				re[i] = re[j];
+				re[j] = t1;
+				t1 = im[i];
+				im[i] = im[j];
+				im[j] = t1;
+			}
+		}
+
+		// FFT
+		n1 = 0;
+		n2 = 1;
+
+		for (i=0; i < m; i++)
 		{
 			n1 = n2;
-			while ( j >= n1 )
+			n2 = n2 + n2;
+			a = 0;
+
+			for (j=0; j < n1; j++)
 			{
-				j = j - n1;
-				n1 = n1/2;
+				c = cos[a];
+				s = sin[a];
+				a +=  1 << (m-i-1);
+
+				for (k=j; k < n; k=k+n2)
+				{
+					t1 = c*re[k+n1] - s*im[k+n1];
+					t2 = s*re[k+n1] + c*im[k+n1];
+					re[k+n1] = re[k] - t1;
+					im[k+n1] = im[k] - t2;
+					re[k] = re[k] + t1;
+					im[k] = im[k] + t2;
+				}
 			}
-			j = j + n1;
+		}
+	}
+
+	// Single precision variant of fft()
+	public void fft(float[] re, float[] im)
+	{
+		int i,j,k,n1,n2,a;
+		float c,s,t1,t2;
 
+		// Bit-reverse
+		for (i=1; i < n - 1; i++)
+		{
+			j = bitReverse[i];
 			if (i < j)
 			{
 				t1 = re[i];
@@ -122,8 +188,8 @@ public class FFT
 
 			for (j=0; j < n1; j++)
 			{
-				c = cos[a];
-				s = sin[a];
+				c = cosF[a];
+				s = sinF[a];
 				a +=  1 << (m-i-1);
 
 				for (k=j; k < n; k=k+n2)
@@ -137,6 +203,6 @@ public class FFT
 				}
 			}
 		}
-	}                          
+	}
 
 }
@@ -30,7 +30,7 @@
  */
 package edu.jhu.hopkinspd.math;
 
-
+import java.util.Arrays;
 
 public class MFCC
 {
@@ -41,23 +41,24 @@ public class MFCC
 	private int melBands;
 	private int numFreqs;
 	private double sampleRate;
-	public Matrix melWeights = null;
-	public Matrix dctMat = null;
+	
+	// Triangular mel filters, stored as their non-zero spans
+	public int[] melStart;
+	public double[][] melWeights;
+	public double[][] dctMat;
 	public double[] lifterWeights;
+	private double[] logMelSpec;
 
 	public MFCC(int fftSize, int numCoeffs, int melBands, double sampleRate)
 	{
-	    // Precompute mel-scale auditory perceptual spectrum
-	    melWeights = new Matrix(melBands, fftSize, 0);
-	    
 	    // Number of non-redundant frequency bins
 	    numFreqs = fftSize/2 + 1;
 	    this.numCoeffs = numCoeffs;
 	    this.melBands = melBands;
 	    this.sampleRate = sampleRate;
 	    
-	    double fftFreqs[] = new double[fftSize];
-	    for (int i = 0; i < fftSize; i ++)
+	    double fftFreqs[] = new double[numFreqs];
+	    for (int i = 0; i < numFreqs; i ++)
 	    {
 	    	fftFreqs[i] = (double)i/(double)fftSize*this.sampleRate;
 	    }
@@ -71,34 +72,48 @@ public class MFCC
 	    	binFreqs[i] = fmel2hz(minMel + (double)i/((double)melBands + 1.0) * (maxMel - minMel));
 	    }
 	    
+	    // Precompute mel-scale auditory perceptual spectrum, positive frequencies only
+	    melStart = new int[melBands];
+	    melWeights = new double[melBands][];
+	    double[] weights = new double[numFreqs];
 	    for (int i = 0; i < melBands; i ++)
 	    {
-	    	for (int j = 0; j < fftSize; j ++)
+	    	int first = numFreqs, last = -1;
+	    	for (int j = 0; j < numFreqs; j ++)
 	    	{
 	    		double loSlope = (fftFreqs[j] - binFreqs[i])/(binFreqs[i+1] - binFreqs[i]);
 		    	double hiSlope = (binFreqs[i+2] - fftFreqs[j])/(binFreqs[i+2] - binFreqs[i+1]);
-		    	melWeights.A[i][j] = Math.max(0, Math.min(loSlope, hiSlope));
+		    	weights[j] = Math.max(0, Math.min(loSlope, hiSlope));
+		    	if (weights[j] > 0)
+		    	{
+		    		first = Math.min(first, j);
+		    		last = j;
+		    	}
 	    	}
+	    	if (last < first)
+	    	{
+	    		first = 0;
+	    		last = -1;
+	    	}
+	    	melStart[i] = first;
+	    	melWeights[i] = Arrays.copyOfRange(weights, first, last + 1);
 	    }
 	    
-	    // Keep only positive frequency parts of Fourier transform
-	    melWeights = melWeights.getMatrix(0, melBands - 1, 0, numFreqs - 1);
-	    
 	    // Precompute DCT matrix
-	    dctMat = new Matrix(numCoeffs, melBands, 0);
+	    dctMat = new double[numCoeffs][melBands];
 	    double scale = Math.sqrt(2.0/melBands);
 	    for (int i = 0; i < numCoeffs; i ++)
 	    {
 	    	for (int j = 0; j < melBands; j ++)
 	    	{
 	    		double phase = j*2 + 1;
-		    	dctMat.A[i][j] = Math.cos((double)i*phase/(2.0*(double)melBands)*Math.PI)*scale;
+		    	dctMat[i][j] = Math.cos((double)i*phase/(2.0*(double)melBands)*Math.PI)*scale;
 	    	}
 	    }
 	    double root2 = 1.0/Math.sqrt(2.0);
 	    for (int j = 0; j < melBands; j ++)
 	    {
-	    	dctMat.A[0][j] *= root2;
+	    	dctMat[0][j] *= root2;
 	    }
 	    
 	    // Precompute liftering vector
@@ -108,39 +123,46 @@ public class MFCC
 	    {
 	    	lifterWeights[i] = Math.pow((double)i, lifterExp);
 	    }
+	    
+	    logMelSpec = new double[melBands];
 	}
 	
-	public double[] cepstrum(double[] re, double[] im)
+	/**
+	 * Liftered mel cepstrum of the spectrum re + j*im (bins 0..fftSize/2),
+	 * written to the first numCoeffs entries of ceps. Uses an internal
+	 * work buffer, so an instance must not be shared between threads.
+	 */
+	public void cepstrum(double[] re, double[] im, double[] ceps)
 	{
-		Matrix powerSpec = new Matrix(numFreqs, 1);
-		for (int i = 0; i < numFreqs; i ++)
-		{
-			powerSpec.A[i][0] = re[i]*re[i] + im[i]*im[i];
-		}
-
-		// melWeights - melBands x numFreqs
-		// powerSpec  - numFreqs x 1
-		// melWeights*powerSpec - melBands x 1
-		// aSpec      - melBands x 1
-		// dctMat     - numCoeffs x melBands
-		// dctMat*log(aSpec) - numCoeffs x 1
-		
-		Matrix aSpec = melWeights.times(powerSpec);
-		Matrix logMelSpec = new Matrix(melBands, 1);
+		cepstrum(re, im, ceps, 0);
+	}
+	
+	public void cepstrum(double[] re, double[] im, double[] ceps, int offset)
+	{
+		// Log power in each mel band, summed over the filter's span only
 		for (int i = 0; i < melBands; i ++)
 		{
-			logMelSpec.A[i][0] = Math.log(aSpec.A[i][0]);
+			double[] w = melWeights[i];
+			int k = melStart[i];
+			double accum = 0;
+			for (int j = 0; j < w.length; j ++, k ++)
+			{
+				accum += w[j]*(re[k]*re[k] + im[k]*im[k]);
+			}
+			logMelSpec[i] = Math.log(accum);
 		}
 
-		Matrix melCeps = dctMat.times(logMelSpec);
-			
-		double[] ceps = new double[numCoeffs];
+		// DCT and liftering
 		for (int i = 0; i < numCoeffs; i ++)
 		{
-			ceps[i] = lifterWeights[i]*melCeps.A[i][0];
+			double[] d = dctMat[i];
+			double accum = 0;
+			for (int j = 0; j < melBands; j ++)
+			{
+				accum += d[j]*logMelSpec[j];
+			}
+			ceps[offset + i] = lifterWeights[i]*accum;
 		}
-
-		return ceps;
 	}
 
 	
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.math;
+
+/**
+ * FFT of a real-valued signal of length n, computed as an n/2-point complex
+ * FFT over the even/odd samples packed as real/imaginary parts, followed by
+ * a split step. Produces the n/2 + 1 non-redundant bins, which is all that
+ * power spectra and MFCCs need.
+ */
+public class RealFFT
+{
+	int n, half;
+	FFT halfFFT;
+
+	// Split-step twiddles, exp(-2*pi*i*k/n) for k = 0..n/2
+	double[] wr, wi;
+	float[] wrF, wiF;
+
+	// Packed work buffers
+	double[] zr, zi;
+	float[] zrF, ziF;
+
+	public RealFFT(int n)
+	{
+		if (n < 4)
+		{
+			throw new RuntimeException("Real FFT length must be at least 4");
+		}
+		this.n = n;
+		this.half = n/2;
+		halfFFT = new FFT(half);
+
+		wr = new double[half + 1];
+		wi = new double[half + 1];
+		wrF = new float[half + 1];
+		wiF = new float[half + 1];
+		for (int k = 0; k <= half; k ++)
+		{
+			wr[k] = Math.cos(-2*Math.PI*k/n);
+			wi[k] = Math.sin(-2*Math.PI*k/n);
+			wrF[k] = (float)wr[k];
+			wiF[k] = (float)wi[k];
+		}
+
+		zr = new double[half];
+		zi = new double[half];
+		zrF = new float[half];
+		ziF = new float[half];
+	}
+
+	public int size()
+	{
+		return n;
+	}
+
+	/**
+	 * x: n real samples (not modified)
+	 * re, im: receive bins 0..n/2, so need at least n/2 + 1 entries.
+	 * re may be the same array as x.
+	 */
+	public void fft(double[] x, double[] re, double[] im)
+	{
+		for (int k = 0; k < half; k ++)
+		{
+			zr[k] = x[2*k];
+			zi[k] = x[2*k + 1];
+		}
+
+		halfFFT.fft(zr, zi);
+
+		for (int k = 0; k <= half; k ++)
+		{
+			int a = (k == half) ? 0 : k;
+			int b = (k == 0) ? 0 : half - k;
+			// Even part (Z[k] + conj(Z[N/2-k]))/2, odd part (Z[k] - conj(Z[N/2-k]))/2i
+			double er = 0.5*(zr[a] + zr[b]);
+			double ei = 0.5*(zi[a] - zi[b]);
+			double or = 0.5*(zi[a] + zi[b]);
+			double oi = -0.5*(zr[a] - zr[b]);
+			re[k] = er + wr[k]*or - wi[k]*oi;
+			im[k] = ei + wr[k]*oi + wi[k]*or;
+		}
+	}
+
+	// Single precision variant of fft()
+	public void fft(float[] x, float[] re, float[] im)
+	{
+		for (int k = 0; k < half; k ++)
+		{
+			zrF[k] = x[2*k];
+			ziF[k] = x[2*k + 1];
+		}
+
+		halfFFT.fft(zrF, ziF);
+
+		for (int k = 0; k <= half; k ++)
+		{
+			int a = (k == half) ? 0 : k;
+			int b = (k == 0) ? 0 : half - k;
+			float er = 0.5f*(zrF[a] + zrF[b]);
+			float ei = 0.5f*(ziF[a] - ziF[b]);
+			float or = 0.5f*(ziF[a] + ziF[b]);
+			float oi = -0.5f*(zrF[a] - zrF[b]);
+			re[k] = er + wrF[k]*or - wiF[k]*oi;
+			im[k] = ei + wrF[k]*oi + wiF[k]*or;
+		}
+	}
+}
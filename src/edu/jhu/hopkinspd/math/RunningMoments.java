@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.math;
+
+/**
+ * Running mean, variance and range of a signal, updated one sample at a time
+ * with Welford's method so the per-sample cost stays flat across a frame.
+ */
+public class RunningMoments
+{
+	public int n;
+	public double mean;
+	public double min, max;
+	private double m2;
+
+	public RunningMoments()
+	{
+		clear();
+	}
+
+	public void clear()
+	{
+		n = 0;
+		mean = 0;
+		m2 = 0;
+		min = Double.POSITIVE_INFINITY;
+		max = Double.NEGATIVE_INFINITY;
+	}
+
+	public void push(double x)
+	{
+		n ++;
+		double delta = x - mean;
+		mean += delta/n;
+		m2 += delta*(x - mean);
+		if (x < min)
+			min = x;
+		if (x > max)
+			max = x;
+	}
+
+	// Population variance, matching the frame features' 1/N normalisation
+	public double variance()
+	{
+		return (n > 0) ? m2/n : 0;
+	}
+
+	public double std()
+	{
+		return Math.sqrt(variance());
+	}
+
+	// Largest absolute deviation from the mean
+	public double maxDeviation()
+	{
+		return (n > 0) ? Math.max(max - mean, mean - min) : 0;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.math;
+
+/**
+ * Structure-of-arrays ring buffer for tri-axial sensor samples: one
+ * contiguous array per axis plus a sample time column, with a head index.
+ * When full, the oldest sample is overwritten.
+ */
+public class TriaxialBuffer
+{
+	public final double[] t;
+	public final float[] x;
+	public final float[] y;
+	public final float[] z;
+	public final int capacity;
+
+	// Next write position, and number of valid samples behind it
+	private int head = 0;
+	private int count = 0;
+
+	public TriaxialBuffer(int capacity)
+	{
+		this.capacity = capacity;
+		t = new double[capacity];
+		x = new float[capacity];
+		y = new float[capacity];
+		z = new float[capacity];
+	}
+
+	public void push(double time, float vx, float vy, float vz)
+	{
+		t[head] = time;
+		x[head] = vx;
+		y[head] = vy;
+		z[head] = vz;
+		if (++head == capacity)
+			head = 0;
+		if (count < capacity)
+			count ++;
+	}
+
+	public void clear()
+	{
+		head = 0;
+		count = 0;
+	}
+
+	public int size()
+	{
+		return count;
+	}
+
+	public boolean isFull()
+	{
+		return count == capacity;
+	}
+
+	// Physical index of the oldest sample
+	public int start()
+	{
+		int s = head - count;
+		return (s < 0) ? s + capacity : s;
+	}
+
+	// Axis column by number: 0 = x, 1 = y, 2 = z
+	public float[] axis(int i)
+	{
+		switch (i)
+		{
+		case 0:
+			return x;
+		case 1:
+			return y;
+		default:
+			return z;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.math;
+
+import java.util.Arrays;
+
+/**
+ * Per-axis frame features of a tri-axial sensor: mean, absolute central
+ * moment, standard deviation and maximum deviation, followed by the mean
+ * power in each frequency band when band edges are given.
+ */
+public class TriaxialFeatures implements FrameFeatures
+{
+	public final TriaxialBuffer buffer;
+	public final RunningMoments[] moments;
+	
+	private double[] bandEdges;
+	public int[] bandIdx;
+	private int fftSize = 0;
+	private RealFFT fft = null;
+	private float[] fftInput, fftBufferR, fftBufferI;
+	private Window win = null;
+
+	public TriaxialFeatures(int capacity)
+	{
+		this(capacity, null, 0);
+	}
+	
+	public TriaxialFeatures(int capacity, double[] bandEdges, int minFFTSize)
+	{
+		buffer = new TriaxialBuffer(capacity);
+		moments = new RunningMoments[3];
+		for (int i = 0; i < 3; i ++)
+			moments[i] = new RunningMoments();
+		
+		this.bandEdges = bandEdges;
+		if (bandEdges != null)
+		{
+			fftSize = Math.max(minFFTSize, 4);
+			while (fftSize < capacity)
+				fftSize <<= 1;
+			fft = new RealFFT(fftSize);
+			fftInput = new float[fftSize];
+			fftBufferR = new float[fftSize/2 + 1];
+			fftBufferI = new float[fftSize/2 + 1];
+			bandIdx = new int[bandEdges.length];
+		}
+	}
+	
+	public int fftSize()
+	{
+		return fftSize;
+	}
+	
+	public void push(double time, float x, float y, float z)
+	{
+		buffer.push(time, x, y, z);
+		moments[0].push(x);
+		moments[1].push(y);
+		moments[2].push(z);
+	}
+	
+	public int size()
+	{
+		return buffer.size();
+	}
+	
+	public boolean isFull()
+	{
+		return buffer.isFull();
+	}
+
+	// Map band edges in Hz onto FFT bins for the given sampling rate
+	public void setSampleRate(double rate)
+	{
+		if (bandEdges == null)
+			return;
+		for (int i = 0; i < bandEdges.length; i ++)
+		{
+			bandIdx[i] = Math.min(Math.round((float)bandEdges[i]*((float)fftSize/(float)rate)), fftSize/2);
+		}
+	}
+
+	@Override
+	public int featureCount()
+	{
+		return 3*(4 + ((bandEdges == null) ? 0 : bandEdges.length - 1));
+	}
+
+	@Override
+	public int extract(double[] features, int offset)
+	{
+		int f = offset;
+		int frameSamples = buffer.size();
+		double fN = (double)frameSamples;
+		
+		// Window sized to this frame, shared by all three axes
+		if (fft != null && (win == null || win.n != frameSamples))
+			win = Window.get(Window.HAMMING, frameSamples);
+		
+		for (int i = 0; i < 3; i ++)
+		{
+			RunningMoments m = moments[i];
+			double mean = m.mean;
+			features[f++] = mean;
+			
+			// Single pass: absolute central moment, and drop windowed,
+			// mean-removed values into the zero-padded FFT buffer
+			double accum = 0;
+			float[] axis = buffer.axis(i);
+			for (int j = 0, p = buffer.start(); j < frameSamples; j ++)
+			{
+				double d = axis[p] - mean;
+				accum += Math.abs(d);
+				if (fft != null)
+					fftInput[j] = (float)(d*win.window[j]);
+				if (++p == buffer.capacity)
+					p = 0;
+			}
+			features[f++] = accum/fN;
+			
+			// Standard deviation and max deviation come from the running moments
+			features[f++] = m.std();
+			features[f++] = m.maxDeviation();
+			
+			if (fft == null)
+				continue;
+			
+			Arrays.fill(fftInput, frameSamples, fftSize, 0);
+			fft.fft(fftInput, fftBufferR, fftBufferI);
+			
+			// Get PSD across frequency band ranges
+			for (int b = 0; b < (bandEdges.length - 1); b ++)
+			{
+				int j = bandIdx[b];
+				int k = bandIdx[b+1];
+				accum = 0;
+				for (int h = j; h < k; h ++)
+				{
+					accum += fftBufferR[h]*fftBufferR[h] + fftBufferI[h]*fftBufferI[h];
+				}
+				features[f++] = accum/((double)(k - j));
+			}
+		}
+		return f - offset;
+	}
+
+	@Override
+	public void clear()
+	{
+		buffer.clear();
+		for (RunningMoments m: moments)
+			m.clear();
+	}
+}
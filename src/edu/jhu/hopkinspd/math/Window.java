@@ -30,21 +30,68 @@
  */
 package edu.jhu.hopkinspd.math;
 
+import java.util.HashMap;
+
 public class Window
 {
+	public static final int HAMMING = 0;
+	public static final int HANN = 1;
+	public static final int BLACKMAN = 2;
+	
+	// Windows are immutable once built, so one instance per (type, length)
+	private static final HashMap<Long, Window> cache = new HashMap<Long, Window>();
+	
 	public double[] window;
 	public int n;
+	public int type;
 	
 	public Window(int windowSize)
 	{
+		this(HAMMING, windowSize);
+	}
+	
+	public Window(int type, int windowSize)
+	{
+		this.type = type;
 		n = windowSize;
-		
-		// Make a Hamming window
 		window = new double[n];
+		if (n == 1)
+		{
+			window[0] = 1.0;
+			return;
+		}
+		
 		for(int i = 0; i < n; i++)
 		{
-			window[i] = 0.54 - 0.46*Math.cos(2*Math.PI*(double)i/((double)n-1));
+			double phase = 2*Math.PI*(double)i/((double)n-1);
+			switch (type)
+			{
+			case HANN:
+				window[i] = 0.5 - 0.5*Math.cos(phase);
+				break;
+			case BLACKMAN:
+				window[i] = 0.42 - 0.5*Math.cos(phase) + 0.08*Math.cos(2*phase);
+				break;
+			default:
+				window[i] = 0.54 - 0.46*Math.cos(phase);
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Shared window of the given type and length, built on first use.
+	 */
+	public static synchronized Window get(int type, int windowSize)
+	{
+		Long key = ((long)type << 32) | windowSize;
+		Window w = cache.get(key);
+		if (w == null)
+		{
+			w = new Window(type, windowSize);
+			cache.put(key, w);
 		}
+		return w;
 	}
 
 	public void applyWindow(double[] buffer)
@@ -55,4 +102,29 @@ public class Window
 		}
 	}
 
+	public void applyWindow(float[] buffer)
+	{
+		for (int i = 0; i < n; i ++)
+		{
+			buffer[i] *= window[i];
+		}
+	}
+	
+	// Windowed copy: dst = src .* window, in a single pass
+	public void applyWindow(double[] src, double[] dst)
+	{
+		for (int i = 0; i < n; i ++)
+		{
+			dst[i] = src[i]*window[i];
+		}
+	}
+	
+	public void applyWindow(short[] src, double[] dst)
+	{
+		for (int i = 0; i < n; i ++)
+		{
+			dst[i] = src[i]*window[i];
+		}
+	}
+
 }
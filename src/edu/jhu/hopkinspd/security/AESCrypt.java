@@ -183,6 +183,15 @@ public class AESCrypt
 	 * @throws GeneralSecurityException if the platform does not support the required cryptographic methods.
 	 */
 	public AESCrypt(GlobalApp app) throws GeneralSecurityException
+	{
+		this(app, null);
+	}
+
+	/**
+	 * Builds an object to encrypt files with a known IV 1, skipping the MAC lookup.
+	 * @throws GeneralSecurityException if the platform does not support the required cryptographic methods.
+	 */
+	public AESCrypt(GlobalApp app, byte[] iv1) throws GeneralSecurityException
 	{
 		try
 		{
@@ -191,7 +200,7 @@ public class AESCrypt
 			digest = MessageDigest.getInstance(DIGEST_ALG);
 			cipher = Cipher.getInstance(CRYPT_TRANS);
 			hmac = Mac.getInstance(HMAC_ALG);
-			ivSpec1 = new IvParameterSpec(generateIv1());
+			ivSpec1 = new IvParameterSpec((iv1 != null) ? iv1 : generateIv1());
 		}
 		catch (GeneralSecurityException e)
 		{
@@ -199,6 +208,11 @@ public class AESCrypt
 		}
 	}
 
+	public byte[] getIv1()
+	{
+		return ivSpec1.getIV();
+	}
+
 	public String generateAESStringKey(String password)
 	{
 		try
@@ -234,7 +248,7 @@ public class AESCrypt
 		OutputStream out = null;
 		try
 		{
-			in = new BufferedInputStream(new FileInputStream(fromPath));
+			in = new FileInputStream(fromPath);
 			out = new BufferedOutputStream(new FileOutputStream(toPath));
 			encrypt(version, in, out, aesStringKey);
 		}
@@ -256,6 +270,40 @@ public class AESCrypt
 	 * @throws GeneralSecurityException if the platform does not support the required cryptographic methods.
 	 */
 	public void encrypt(int version, InputStream in, OutputStream out, String aesStringKey)
+	throws IOException, GeneralSecurityException {
+		writeHeader(version, out, aesStringKey);
+
+		// Whole chunks at a time rather than one JCE call per 16-byte block
+		AESCryptOutputStream crypt = new AESCryptOutputStream(out, cipher, hmac);
+		byte[] data = new byte[AESCryptOutputStream.CHUNK_SIZE];
+		int len;
+		while ((len = in.read(data)) > 0)
+		{
+			crypt.write(data, 0, len);
+		}
+		crypt.finish();
+	}
+
+	/**
+	 * Returns a stream that encrypts everything written to it into <tt>out</tt>,
+	 * in the same file layout as {@link #encrypt(int, InputStream, OutputStream, String)}.
+	 * Closing it writes the trailer and closes <tt>out</tt>. Only one stream
+	 * or encrypt() call may use this object at a time.
+	 * @throws IOException when there are I/O errors.
+	 * @throws GeneralSecurityException if the platform does not support the required cryptographic methods.
+	 */
+	public OutputStream encryptingStream(int version, OutputStream out, String aesStringKey)
+	throws IOException, GeneralSecurityException
+	{
+		writeHeader(version, out, aesStringKey);
+		return new AESCryptOutputStream(out, cipher, hmac);
+	}
+
+	/**
+	 * Writes the file header and crypted key block, then leaves <tt>cipher</tt>
+	 * and <tt>hmac</tt> initialized for the file contents.
+	 */
+	private void writeHeader(int version, OutputStream out, String aesStringKey)
 	throws IOException, GeneralSecurityException {
 		try {
 			byte[] text = null;
@@ -286,20 +334,6 @@ public class AESCrypt
 
 			cipher.init(Cipher.ENCRYPT_MODE, aesKey2, ivSpec2);
 			hmac.init(new SecretKeySpec(aesKey2.getEncoded(), HMAC_ALG));
-			text = new byte[IV_BLOCK_SIZE];
-			int len, last = 0;
-			while ((len = in.read(text)) > 0)
-			{
-				cipher.update(text, 0, IV_BLOCK_SIZE, text);
-				hmac.update(text);
-				out.write(text);	// Crypted file data block.
-				last = len;
-			}
-			last &= 0x0f;
-			out.write(last);	// Last block size mod 16.
-
-			text = hmac.doFinal();
-			out.write(text);	// HMAC from previous cyphertext.
 		}
 		catch (InvalidKeyException e)
 		{
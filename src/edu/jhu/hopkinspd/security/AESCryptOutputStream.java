@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.security;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+/**
+ * Encrypts the file contents part of an AES Crypt file as it is written,
+ * so plaintext never has to be stored first. Data is encrypted in large
+ * block-aligned chunks. A final partial block is padded the way
+ * {@link AESCrypt#encrypt(int, java.io.InputStream, OutputStream, String)}
+ * pads it, with the tail of the previous crypted block, so both produce the
+ * same bytes.
+ */
+public class AESCryptOutputStream extends FilterOutputStream
+{
+	static final int CHUNK_SIZE = 65536;
+	private static final int BLOCK_SIZE = 16;
+
+	private final Cipher cipher;
+	private final Mac hmac;
+	private final byte[] buf = new byte[CHUNK_SIZE];
+	private final byte[] lastBlock = new byte[BLOCK_SIZE];
+	private int count = 0;
+	private boolean finished = false;
+
+	// cipher and hmac must already be initialized for the file contents
+	AESCryptOutputStream(OutputStream out, Cipher cipher, Mac hmac)
+	{
+		super(out);
+		this.cipher = cipher;
+		this.hmac = hmac;
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		if (count == CHUNK_SIZE)
+			encryptChunk(CHUNK_SIZE);
+		buf[count++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		while (len > 0)
+		{
+			if (count == CHUNK_SIZE)
+				encryptChunk(CHUNK_SIZE);
+			int n = Math.min(len, CHUNK_SIZE - count);
+			System.arraycopy(b, off, buf, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	// Encrypts the first n bytes of buf in place, n a multiple of BLOCK_SIZE
+	private void encryptChunk(int n) throws IOException
+	{
+		if (n == 0)
+			return;
+		try
+		{
+			cipher.update(buf, 0, n, buf, 0);
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IOException(e.getMessage());
+		}
+		hmac.update(buf, 0, n);
+		out.write(buf, 0, n);	// Crypted file data blocks.
+		System.arraycopy(buf, n - BLOCK_SIZE, lastBlock, 0, BLOCK_SIZE);
+		count -= n;
+		System.arraycopy(buf, n, buf, 0, count);
+	}
+
+	/**
+	 * Encrypts what is left and writes the last block size and HMAC, without
+	 * closing the underlying stream. Nothing may be written afterwards.
+	 */
+	public void finish() throws IOException
+	{
+		if (finished)
+			return;
+		finished = true;
+
+		int last = count & (BLOCK_SIZE - 1);
+		encryptChunk(count - last);
+		if (last > 0)
+		{
+			System.arraycopy(lastBlock, last, buf, last, BLOCK_SIZE - last);
+			count = BLOCK_SIZE;
+			encryptChunk(BLOCK_SIZE);
+		}
+		out.write(last);	// Last block size mod 16.
+		out.write(hmac.doFinal());	// HMAC from previous cyphertext.
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			finish();
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
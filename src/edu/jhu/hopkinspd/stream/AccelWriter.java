@@ -35,7 +35,6 @@ import android.hardware.*;
 import android.util.Log;
 
 import java.io.*;
-import java.util.Arrays;
 import java.util.Date;
 
 import org.json.JSONArray;
@@ -44,20 +43,21 @@ import org.json.JSONObject;
 
 import edu.jhu.hopkinspd.GlobalApp;
 import edu.jhu.hopkinspd.R;
-import edu.jhu.hopkinspd.math.FFT;
-import edu.jhu.hopkinspd.math.Window;
+import edu.jhu.hopkinspd.math.TriaxialFeatures;
 
 public class AccelWriter extends StreamWriter
 {
 	private static String STREAM_NAME = "accel";
+	private static final String[] RAW_COLUMNS = {"diffSecs", "x", "y", "z"};
+	private static final String[] RAW_UNITS = {"s", "m/s^2", "m/s^2", "m/s^2"};
 	private static final String TAG = GlobalApp.TAG + "|" + STREAM_NAME;
 	private static final int SENSOR_TYPE = Sensor.TYPE_ACCELEROMETER;
 	private int SENSOR_RATE = SensorManager.SENSOR_DELAY_FASTEST;
 	
 	private static final int STREAM_FEATURES = 26;
 	private static final double SENSOR_FRAME_DURATION = 1.0;			// Frame length in seconds
-	private static final double SENSOR_MAX_RATE = 100.0;				// Assumed maximum accelerometer sampling rate
-	private static int FFT_SIZE = 128;
+	private static final double SENSOR_MAX_RATE = 100.0;				// Minimum assumed accelerometer sampling rate
+	private static final int MIN_FFT_SIZE = 128;
 	private static double[] FREQ_BANDEDGES = {0,1,3,6,10};
 
 	private SensorManager sensorManager = null;
@@ -68,15 +68,9 @@ public class AccelWriter extends StreamWriter
 	
 	private double prevFrameSecs;
 	private double frameTimer = 0;
-	private double[][] frameBuffer = null;
-	private double[] fftBufferR = null;
-	private double[] fftBufferI = null;
-	private int frameSamples = 0;
+	private TriaxialFeatures frameFeatures = null;
 	private int frameBufferSize = 0;
 
-	private FFT featureFFT = null;
-    private Window featureWin = null;
-    private static int[] freqBandIdx = null;
     private boolean rawOn, featureOn;
     
     // for debug
@@ -87,12 +81,16 @@ public class AccelWriter extends StreamWriter
     public AccelWriter(GlobalApp application)
     {
     	super(application);
+    	// High-rate raw stream, batch up to 10 seconds of frames per write
+    	sinkBufferBytes = 32768;
+    	sinkLatencyMillis = 10000;
     	debugTextStream = app.openLogTextFile(GlobalApp.LOG_FILE_NAME_ACC);
     	SENSOR_RATE = Integer.parseInt(getStringPref(app.getResources().getString(R.string.sensorRate)));
     	rawOn = getBooleanPref(app.getResources().getString(R.string.sensorAccelRawOn));
     	featureOn = getBooleanPref(app.getResources().getString(R.string.sensorAccelFeatureOn));
     	sensorManager = (SensorManager)app.getSystemService(Context.SENSOR_SERVICE);
         sensor = sensorManager.getDefaultSensor(SENSOR_TYPE);
+        rawMult = sensorRawMult(sensor, 3);
         logTextStream = app.openLogTextFile(STREAM_NAME);
 //        openLogTextFile(STREAM_NAME, getStringPref(GlobalApp.PREF_KEY_ROOT_PATH));
 	    writeLogTextLine("Created " + this.getClass().getName() + " instance");
@@ -102,25 +100,20 @@ public class AccelWriter extends StreamWriter
 	    if(featureOn)
 	    {
 		    // only run below lines when feature is on
-	        // Allocate frame buffer, assuming a maximum sampling rate
-	        frameBufferSize = (int)Math.ceil(SENSOR_MAX_RATE/SENSOR_FRAME_DURATION);
-	        frameBuffer = new double[frameBufferSize][3];
+	        // Allocate frame buffer from the sensor's maximum sampling rate
+	        double maxRate = sensorMaxRate(sensor, SENSOR_MAX_RATE);
+	        frameBufferSize = frameBufferSize(maxRate, SENSOR_FRAME_DURATION);
+	        frameFeatures = new TriaxialFeatures(frameBufferSize, FREQ_BANDEDGES, MIN_FFT_SIZE);
+	        writeLogTextLine("Accelerometer maximum rate (Hz): " + maxRate);
 	        writeLogTextLine("Accelerometer maximum frame size (samples): " + frameBufferSize);
 	        writeLogTextLine("Accelerometer maximum frame duation (secs): " + SENSOR_FRAME_DURATION);
 	        
 	        allocateFrameFeatureBuffer(STREAM_FEATURES);
 	
-	        featureFFT = new FFT(FFT_SIZE);
-		    featureWin = new Window(frameBufferSize);
-	
-	        fftBufferR = new double[FFT_SIZE];
-	    	fftBufferI = new double[FFT_SIZE];
-	
-	    	freqBandIdx = new int[FREQ_BANDEDGES.length];
+	    	frameFeatures.setSampleRate(maxRate);
 		    for (int i = 0; i < FREQ_BANDEDGES.length; i ++)
 		    {
-		    	freqBandIdx[i] = Math.round((float)FREQ_BANDEDGES[i]*((float)FFT_SIZE/(float)SENSOR_MAX_RATE));
-		    	writeLogTextLine("Frequency band edge " + i + ": " + Integer.toString(freqBandIdx[i]));
+		    	writeLogTextLine("Frequency band edge " + i + ": " + Integer.toString(frameFeatures.bandIdx[i]));
 		    }
 	    }
     }
@@ -135,38 +128,72 @@ public class AccelWriter extends StreamWriter
     
     public void init()
     {
-        sensorManager.registerListener(this, sensor, SENSOR_RATE);
+        registerSensorListener(sensorManager, sensor, SENSOR_RATE, android.os.Process.THREAD_PRIORITY_MORE_FAVORABLE);
         Log.v(TAG,"accelWriter initialized");
     }
 
     public void destroy()
     {
-    	sensorManager.unregisterListener(this);
+    	unregisterSensorListener(sensorManager);
     	sensorManager = null;
     	sensor = null;
     	Log.v(TAG,"destroied");
     }
     
-    public void start(Date startTime)
+    public void start(final Date startTime)
+    {
+    	runOnSensorThread(new Runnable()
+    	{
+    		public void run()
+    		{
+    			startStreams(startTime);
+    		}
+    	});
+    }
+    
+    public void stop(final Date stopTime)
+    {
+    	runOnSensorThread(new Runnable()
+    	{
+    		public void run()
+    		{
+    			stopStreams(stopTime);
+    		}
+    	});
+    }
+    
+    public void restart(final Date time)
+    {
+    	runOnSensorThread(new Runnable()
+    	{
+    		public void run()
+    		{
+    			restartStreams(time);
+    		}
+    	});
+    }
+    
+    private void startStreams(Date startTime)
     {
 	    prevSecs = ((double)startTime.getTime())/1000.0d;
+	    anchorEventTime(startTime);
 
 	    writeLogTextLine("prevSecs: " + prevSecs);
 	    
 	    prevFrameSecs = prevSecs;
 	    frameTimer = 0;
-	    frameSamples = 0;
 
-	    // Ensure frame buffer is cleared
 	    if(featureOn)
-	    	for (double[] row: frameBuffer)
-	    		Arrays.fill(row, 0);
+	    {
+	    	frameFeatures.clear();
+	    }
 	    
 	    // Create new stream file(s)
 	    String timeStamp = timeString(startTime);
 	    
 	    if (rawOn)
-	       	sensorStreamRaw = openStreamFile(STREAM_NAME, timeStamp, raw_stream_extension);
+	       	sensorStreamRaw = openStreamFile(STREAM_NAME, timeStamp, raw_stream_extension,
+					RAW_COLUMNS, RAW_UNITS, Double.NaN);
 	    if(featureOn)
 	    	sensorStreamFeatures = openStreamFile(STREAM_NAME, timeStamp, feature_stream_extension);
 
@@ -175,7 +202,7 @@ public class AccelWriter extends StreamWriter
 	    Log.v(TAG,"started");
     }
     
-    public void stop(Date stopTime)
+    private void stopStreams(Date stopTime)
     {
     	isRecording = false;
     	if (rawOn && closeStreamFile(sensorStreamRaw))
@@ -190,14 +217,16 @@ public class AccelWriter extends StreamWriter
     	Log.v(TAG,"stopped");
     }
 
-    public void restart(Date time)
+    private void restartStreams(Date time)
     {
     	String timeStamp = timeString(time);
     	prevSecs = ((double)time.getTime())/1000.0d;
+    	anchorEventTime(time);
 	    if (rawOn)
 	    {
 	    	DataOutputStream oldRaw = sensorStreamRaw;
-	    	sensorStreamRaw = openStreamFile(STREAM_NAME, timeStamp, raw_stream_extension);
+	    	sensorStreamRaw = openStreamFile(STREAM_NAME, timeStamp, raw_stream_extension,
+					RAW_COLUMNS, RAW_UNITS, Double.NaN);
 	    	if(closeStreamFile(oldRaw))
 	    		writeLogTextLine("Raw accelerometry recording successfully restarted");
 	    }
@@ -216,7 +245,7 @@ public class AccelWriter extends StreamWriter
 		if (isRecording)
 		{
 			long current = System.currentTimeMillis();
-	    	double currentSecs = (double)(current)/1000.0d;
+	    	double currentSecs = sensorEventSecs(event);
 			
         	double diffSecs = currentSecs - prevSecs;
         	prevSecs = currentSecs;
@@ -228,12 +257,8 @@ public class AccelWriter extends StreamWriter
         	// Write out raw accelerometry data, if enabled
         	if (rawOn)
         	{
-	        	double[] accData = new double[4];
-	        	accData[0] = diffSecs;
-	        	accData[1] = X;
-	        	accData[2] = Y;
-	        	accData[3] = Z;
-	        	writeFeatureFrame(accData, sensorStreamRaw, dataOutputFormat);
+	        	writeRawFrame(sensorStreamRaw, dataOutputFormat, diffSecs,
+	        			event.values[0], event.values[1], event.values[2]);
 	        	
 	        	if(current - lastSensorChanged > 10000){
 	        		String str = "accData " + X + " " + Y + " " + Z;
@@ -247,18 +272,19 @@ public class AccelWriter extends StreamWriter
         		return;
 
 	        // Store measurement in frame buffer
-        	frameBuffer[frameSamples][0] = X;
-        	frameBuffer[frameSamples][1] = Y;
-        	frameBuffer[frameSamples][2] = Z;
-        	frameSamples ++;
+        	frameFeatures.push(currentSecs, event.values[0], event.values[1], event.values[2]);
         	frameTimer += diffSecs;
 
         	// Frame complete?
-        	if ((frameTimer >= SENSOR_FRAME_DURATION) || (frameSamples == (frameBufferSize - 1)))
+        	if ((frameTimer >= SENSOR_FRAME_DURATION) || frameFeatures.isFull())
         	{
         		clearFeatureFrame();
         		
-                double fN = (double)frameSamples;
+                double fN = (double)frameFeatures.size();
+                
+                // Band edges follow the rate actually measured over this frame
+                if (frameTimer > 0)
+                	frameFeatures.setSampleRate(fN/frameTimer);
 //                if (prevFrameSecs == 0)
 //                {
 //                	prevFrameSecs = currentSecs;
@@ -268,76 +294,15 @@ public class AccelWriter extends StreamWriter
                 pushFrameFeature(diffFrameSecs);
         		pushFrameFeature(fN);
         		
-        		// Calculate accelerometry features for X,Y,Z
-        		for (int i = 0; i < 3; i ++)
-        		{
-            		// Mean
-        			double mean = 0;
-        			for (int j = 0; j < frameSamples; j ++)
-        				mean += frameBuffer[j][i];
-        			mean /= fN;
-        			pushFrameFeature(mean);
-            		
-        			double accum;
-
-        			// Absolute central moment
-        			accum = 0;
-        			for (int j = 0; j < frameSamples; j ++)
-        				accum += Math.abs(frameBuffer[j][i] - mean);
-        			pushFrameFeature(accum/fN);
-        			
-        			// Standard deviation
-        			accum = 0;
-        			for (int j = 0; j < frameSamples; j ++)
-        				accum += (frameBuffer[j][i] - mean)*(frameBuffer[j][i] - mean);
-        			pushFrameFeature(Math.sqrt(accum/fN));
-
-        			// Max deviation
-        			accum = 0;
-        			for (int j = 0; j < frameSamples; j ++)
-        				accum = Math.max(Math.abs(frameBuffer[j][i] - mean),accum);
-        			pushFrameFeature(accum);
-        			
-                    // Frequency analysis with zero-padding
-    	        	Arrays.fill(fftBufferR, 0);
-    	        	Arrays.fill(fftBufferI, 0);
-    	        	
-    	        	// Drop accel. values into FFT buffer
-    	        	for (int j = 0; j < frameSamples; j++)
-    	        	{
-    	        		fftBufferR[j] = frameBuffer[j][i] - mean;
-    	        	}
-
-    	        	// In-place windowing
-    	        	featureWin.applyWindow(fftBufferR);
-    	        	
-    	        	// In-place FFT
-    	        	featureFFT.fft(fftBufferR, fftBufferI);
-
-    	        	// Get PSD across frequency band ranges
-    	        	for (int b = 0; b < (FREQ_BANDEDGES.length - 1); b ++)
-    	        	{
-    	        		int j = freqBandIdx[b];
-    	        		int k = freqBandIdx[b+1];
-    	        		accum = 0;
-    	        		for (int h = j; h < k; h ++)
-    	        		{
-    	        			accum += fftBufferR[h]*fftBufferR[h] + fftBufferI[h]*fftBufferI[h];
-    	        		}
-    	        		pushFrameFeature(accum/((double)(k - j)));
-    	        	}
-        		}
+        		// Accelerometry features for X,Y,Z
+        		pushFrameFeatures(frameFeatures);
         		
 	        	// Write out features
 	        	writeFeatureFrame(featureBuffer, sensorStreamFeatures, dataOutputFormat);
 	        	
         		// Reset frame buffer counters
-        		frameSamples = 0;
+        		frameFeatures.clear();
         		frameTimer = 0;
-
-        		// Ensure buffer is zero-padded
-        		for (double[] row: frameBuffer)
-        			Arrays.fill(row, 0);
         	}
 
 		}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.stream;
+
+/**
+ * Allocation-free decimal formatting of doubles and floats into a byte
+ * array, laid out like Double.toString(): plain notation for magnitudes in
+ * [1e-3, 1e7), otherwise d.dddE[-]n.
+ *
+ * With significantDigits = SHORTEST, each value gets the fewest digits that
+ * read back as the same double (or float, for the float overload), so text
+ * files keep full precision. Otherwise values are rounded to the given
+ * number of significant digits and trailing zeros are dropped.
+ *
+ * Digits are exact while every power of ten involved is exactly
+ * representable, which covers roughly 1e-6 to 1e22; values outside that
+ * range fall back to Double.toString().
+ */
+public class AsciiNumberFormat
+{
+	public static final int SHORTEST = 0;
+	
+	// Longest output: sign, 17 digits, point, "E-324"
+	public static final int MAX_LENGTH = 26;
+
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+	private static final double SPLIT = 134217729.0;		// 2^27 + 1
+	private static final long EXACT_LIMIT = 1L << 53;
+	private static final byte[] NAN = {'N', 'a', 'N'};
+	private static final byte[] INFINITY = {'I', 'n', 'f', 'i', 'n', 'i', 't', 'y'};
+
+	private final int significantDigits;
+	private final byte[] digitBuf = new byte[20];
+
+	// Result of the last decimal conversion
+	private long digits;
+	private int count;
+	private int exponent;
+	private double residual;		// v*10^k - digits
+
+	public AsciiNumberFormat(int significantDigits)
+	{
+		this.significantDigits = Math.min(Math.max(significantDigits, 0), 17);
+	}
+
+	/**
+	 * Writes v at dst[pos], returns the position after the last character.
+	 * dst needs MAX_LENGTH bytes of room.
+	 */
+	public int format(double v, byte[] dst, int pos)
+	{
+		if (Double.isNaN(v) || Double.isInfinite(v) || v == 0)
+			return special(v, dst, pos);
+		if (v < 0)
+		{
+			dst[pos++] = '-';
+			v = -v;
+		}
+		int exp = (int)Math.floor(Math.log10(v));
+		if (!exactRange(exp, 17))
+			return copy(Double.toString(v), dst, pos);
+		if (significantDigits > 0)
+		{
+			convert(v, exp, significantDigits);
+		}
+		else
+		{
+			for (int n = 1; n <= 17; n ++)
+			{
+				convert(v, exp, n);
+				if (n == 17 || roundTrips(v))
+					break;
+			}
+		}
+		return layout(dst, pos);
+	}
+
+	public int format(float f, byte[] dst, int pos)
+	{
+		if (Float.isNaN(f) || Float.isInfinite(f) || f == 0)
+			return special(f, dst, pos);
+		if (f < 0)
+		{
+			dst[pos++] = '-';
+			f = -f;
+		}
+		double v = f;
+		int exp = (int)Math.floor(Math.log10(v));
+		if (!exactRange(exp, 9))
+			return copy(Float.toString(f), dst, pos);
+		if (significantDigits > 0)
+		{
+			convert(v, exp, Math.min(significantDigits, 9));
+		}
+		else
+		{
+			for (int n = 1; n <= 9; n ++)
+			{
+				convert(v, exp, n);
+				if (n == 9 || (float)value() == f)
+					break;
+			}
+		}
+		return layout(dst, pos);
+	}
+
+	// Whether 10^(n-1-exp) is exact for every digit count n this format uses
+	private boolean exactRange(int exp, int maxDigits)
+	{
+		int lo = (significantDigits > 0) ? Math.min(significantDigits, maxDigits) : 1;
+		int hi = (significantDigits > 0) ? lo : maxDigits;
+		return (lo - 1 - exp >= 1 - POW10.length) && (hi - 1 - exp < POW10.length);
+	}
+
+	private static int copy(String s, byte[] dst, int pos)
+	{
+		for (int i = 0; i < s.length(); i ++)
+			dst[pos++] = (byte)s.charAt(i);
+		return pos;
+	}
+
+	private static double pow10(int k)
+	{
+		return (k < POW10.length) ? POW10[k] : Math.pow(10, k);
+	}
+
+	// Rounds v to n significant digits: v ~ digits * 10^(exponent - count + 1)
+	private void convert(double v, int exp, int n)
+	{
+		for (;;)
+		{
+			long d = roundScaled(v, n - 1 - exp);
+			if (d >= (long)pow10(n))
+			{
+				exp ++;
+			}
+			else if (d < (long)pow10(n - 1))
+			{
+				exp --;
+			}
+			else
+			{
+				digits = d;
+				count = n;
+				exponent = exp;
+				return;
+			}
+		}
+	}
+
+	// round(v * 10^k), carrying the rounding error of the product so that
+	// 16 and 17 digit results are still correctly rounded
+	private long roundScaled(double v, int k)
+	{
+		double s, err;
+		if (k >= 0 && k < POW10.length)
+		{
+			double p = POW10[k];
+			s = v*p;
+			err = productError(v, p, s);
+		}
+		else if (k < 0 && -k < POW10.length)
+		{
+			double p = POW10[-k];
+			s = v/p;
+			double hi = s*p;
+			err = ((v - hi) - productError(s, p, hi))/p;
+		}
+		else
+		{
+			s = scale(v, k);
+			err = 0;
+		}
+		double base = Math.floor(s);
+		double frac = (s - base) + err;
+		long up = (long)Math.floor(frac + 0.5);
+		residual = frac - up;
+		return (long)base + up;
+	}
+
+	// Exact a*b - p for p = a*b, by Veltkamp splitting
+	private static double productError(double a, double b, double p)
+	{
+		double t = SPLIT*a;
+		double aHi = t - (t - a);
+		double aLo = a - aHi;
+		t = SPLIT*b;
+		double bHi = t - (t - b);
+		double bLo = b - bHi;
+		return ((aHi*bHi - p) + aHi*bLo + aLo*bHi) + aLo*bLo;
+	}
+
+	// value() is exact below 2^53; wider digit strings are checked against
+	// half an ulp of v instead
+	private boolean roundTrips(double v)
+	{
+		if (digits < EXACT_LIMIT)
+			return value() == v;
+		return Math.abs(residual) < 0.5*scale(Math.ulp(v), count - 1 - exponent);
+	}
+
+	private double value()
+	{
+		return scale(digits, exponent - count + 1);
+	}
+
+	private static double scale(double v, int k)
+	{
+		if (k > 300)
+			return v*1e300*pow10(k - 300);
+		if (k < -300)
+			return v/1e300/pow10(-300 - k);
+		return (k >= 0) ? v*pow10(k) : v/pow10(-k);
+	}
+
+	private int layout(byte[] dst, int pos)
+	{
+		// Drop trailing zeros, keeping at least one digit
+		while (count > 1 && digits % 10 == 0)
+		{
+			digits /= 10;
+			count --;
+		}
+		long d = digits;
+		for (int i = count - 1; i >= 0; i --)
+		{
+			digitBuf[i] = (byte)('0' + (d % 10));
+			d /= 10;
+		}
+
+		if (exponent >= -3 && exponent < 7)
+		{
+			if (exponent < 0)
+			{
+				dst[pos++] = '0';
+				dst[pos++] = '.';
+				for (int i = -1; i > exponent; i --)
+					dst[pos++] = '0';
+				for (int i = 0; i < count; i ++)
+					dst[pos++] = digitBuf[i];
+			}
+			else
+			{
+				for (int i = 0; i <= exponent; i ++)
+					dst[pos++] = (i < count) ? digitBuf[i] : (byte)'0';
+				dst[pos++] = '.';
+				if (count > exponent + 1)
+				{
+					for (int i = exponent + 1; i < count; i ++)
+						dst[pos++] = digitBuf[i];
+				}
+				else
+				{
+					dst[pos++] = '0';
+				}
+			}
+			return pos;
+		}
+
+		dst[pos++] = digitBuf[0];
+		dst[pos++] = '.';
+		if (count > 1)
+		{
+			for (int i = 1; i < count; i ++)
+				dst[pos++] = digitBuf[i];
+		}
+		else
+		{
+			dst[pos++] = '0';
+		}
+		dst[pos++] = 'E';
+		int e = exponent;
+		if (e < 0)
+		{
+			dst[pos++] = '-';
+			e = -e;
+		}
+		if (e >= 100)
+			dst[pos++] = (byte)('0' + e/100);
+		if (e >= 10)
+			dst[pos++] = (byte)('0' + (e/10) % 10);
+		dst[pos++] = (byte)('0' + e % 10);
+		return pos;
+	}
+
+	private static int special(double v, byte[] dst, int pos)
+	{
+		if (Double.isNaN(v))
+		{
+			System.arraycopy(NAN, 0, dst, pos, NAN.length);
+			return pos + NAN.length;
+		}
+		if (v < 0 || (v == 0 && 1/v < 0))
+			dst[pos++] = '-';
+		if (v == 0)
+		{
+			dst[pos++] = '0';
+			dst[pos++] = '.';
+			dst[pos++] = '0';
+			return pos;
+		}
+		System.arraycopy(INFINITY, 0, dst, pos, INFINITY.length);
+		return pos + INFINITY.length;
+	}
+}
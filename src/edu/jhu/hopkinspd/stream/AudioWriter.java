@@ -35,9 +35,8 @@ import java.util.*;
 
 import edu.jhu.hopkinspd.GlobalApp;
 import edu.jhu.hopkinspd.R;
-import edu.jhu.hopkinspd.math.FFT;
-import edu.jhu.hopkinspd.math.MFCC;
-import edu.jhu.hopkinspd.math.Window;
+import edu.jhu.hopkinspd.math.AudioFeatures;
+import edu.jhu.hopkinspd.math.RunningMoments;
 
 import android.content.Context;
 import android.media.*;
@@ -64,6 +63,7 @@ public class AudioWriter extends StreamWriter
 	private static int MFCCS = 12;
 	private static int MEL_BANDS = 20;
 	private static int STREAM_FEATURES = 20;
+	private static int SHORT_STREAM_FEATURES = 33;
 	private static double[] FREQ_BANDEDGES = {50,250,500,1000,2000};
 
 	private AudioRecord audioRecorder = null;
@@ -72,11 +72,24 @@ public class AudioWriter extends StreamWriter
 	private int bufferSamples = 0;
     DataOutputStream audioStreamRaw = null;
     DataOutputStream audioStreamFeatures = null;
-    private static int[] freqBandIdx = null;
+    // Held by the recorder thread while it writes, and by restart() while
+    // it swaps and closes the files
+    private final Object streamLock = new Object();
 	
-    private FFT featureFFT = null;
-    private MFCC featureMFCC = null;
-    private Window featureWin = null;
+    private AudioFeatures frameFeatures = null;
+    
+    // Short-time analysis, enabled when frameLength > 0
+    private int frameLength = 0;
+    private int frameHop = 0;
+    private boolean perFrameOn;
+    private double[] frameSamples = null;
+    private int frameFill = 0;
+    private int samplesSinceFrame = 0;
+    private double[] readNorms = null;
+    private double[] shortBandPower = null;
+    private double[] shortCepstrum = null;
+    private RunningMoments[] bandMoments = null;
+    private RunningMoments[] cepsMoments = null;
     
     private TelephonyManager tm;
     
@@ -89,6 +102,8 @@ public class AudioWriter extends StreamWriter
     public AudioWriter(GlobalApp application)
     {
     	super(application);
+    	// Raw audio arrives in one-second blocks of 16000 bytes
+    	sinkBufferBytes = 65536;
     	rawOn = getBooleanPref(app.getResources().getString(R.string.sensorAudioRawOn));
     	featureOn = getBooleanPref(app.getResources().getString(R.string.sensorAudioFeatureOn));
     	
@@ -108,17 +123,46 @@ public class AudioWriter extends StreamWriter
 	    writeLogTextLine("Raw streaming: " + rawOn);
 	    writeLogTextLine("Feature streaming: " + featureOn);
 
-    	allocateFrameFeatureBuffer(STREAM_FEATURES);
-    
-	    featureFFT = new FFT(FFT_SIZE);
-	    featureWin = new Window(bufferSamples);
-	    featureMFCC = new MFCC(FFT_SIZE, MFCCS, MEL_BANDS, RECORDER_SAMPLERATE);
+	    frameLength = Math.min(getIntStringPref(app.getString(R.string.sensorAudioFrameLength), 0), bufferSamples);
+	    if (frameLength > 0)
+	    {
+	    	// Short-time frames, one FFT size for all of them
+	    	frameHop = getIntStringPref(app.getString(R.string.sensorAudioFrameHop), frameLength/2);
+	    	frameHop = Math.max(1, Math.min(frameHop, frameLength));
+	    	perFrameOn = getBooleanPref(app.getString(R.string.sensorAudioPerFrameOn));
+	    	int shortFFTSize = 1;
+	    	while (shortFFTSize < frameLength)
+	    		shortFFTSize <<= 1;
+	    	
+	    	frameFeatures = new AudioFeatures(shortFFTSize, MFCCS, MEL_BANDS, RECORDER_SAMPLERATE, FREQ_BANDEDGES);
+	    	frameSamples = new double[frameLength];
+	    	readNorms = new double[3];
+	    	shortBandPower = new double[FREQ_BANDEDGES.length - 1];
+	    	shortCepstrum = new double[MFCCS];
+	    	bandMoments = new RunningMoments[FREQ_BANDEDGES.length - 1];
+	    	for (int i = 0; i < bandMoments.length; i ++)
+	    		bandMoments[i] = new RunningMoments();
+	    	cepsMoments = new RunningMoments[MFCCS];
+	    	for (int i = 0; i < MFCCS; i ++)
+	    		cepsMoments[i] = new RunningMoments();
+	    	
+	    	writeLogTextLine("Audio frame length (samples): " + frameLength);
+	    	writeLogTextLine("Audio frame hop (samples): " + frameHop);
+	    	writeLogTextLine("Audio frame FFT size: " + frameFeatures.fftSize());
+	    	writeLogTextLine("Per-frame features: " + perFrameOn);
+	    	
+	    	// Per-frame records keep the one-second layout, aggregates add MFCC spread
+	    	allocateFrameFeatureBuffer(perFrameOn ? STREAM_FEATURES : SHORT_STREAM_FEATURES);
+	    }
+	    else
+	    {
+	    	allocateFrameFeatureBuffer(STREAM_FEATURES);
+		    frameFeatures = new AudioFeatures(FFT_SIZE, MFCCS, MEL_BANDS, RECORDER_SAMPLERATE, FREQ_BANDEDGES);
+	    }
 	    
-	    freqBandIdx = new int[FREQ_BANDEDGES.length];
 	    for (int i = 0; i < FREQ_BANDEDGES.length; i ++)
 	    {
-	    	freqBandIdx[i] = Math.round((float)FREQ_BANDEDGES[i]*((float)FFT_SIZE/(float)RECORDER_SAMPLERATE));
-	    	writeLogTextLine("Frequency band edge " + i + ": " + Integer.toString(freqBandIdx[i]));
+	    	writeLogTextLine("Frequency band edge " + i + ": " + Integer.toString(frameFeatures.bandIdx[i]));
 	    }
 	    
 	    audioRecorder = new AudioRecord(
@@ -163,10 +207,16 @@ public class AudioWriter extends StreamWriter
 	    String timeStamp = timeString(startTime);
 
 	    // Create new stream file(s)
-	    if (rawOn)
-	       	audioStreamRaw = new DataOutputStream(openStreamFile(STREAM_NAME, timeStamp, GlobalApp.STREAM_EXTENSION_RAW));
-	    if (featureOn)
-	    	audioStreamFeatures = new DataOutputStream(openStreamFile(STREAM_NAME, timeStamp, GlobalApp.STREAM_EXTENSION_BIN));
+	    synchronized (streamLock)
+	    {
+		    if (rawOn)
+		       	audioStreamRaw = openStreamFile(STREAM_NAME, timeStamp, GlobalApp.STREAM_EXTENSION_RAW);
+		    if (featureOn)
+		    	audioStreamFeatures = openStreamFile(STREAM_NAME, timeStamp, GlobalApp.STREAM_EXTENSION_BIN);
+	    }
+	    
+	    frameFill = 0;
+	    samplesSinceFrame = 0;
 	    
 	    audioRecorder.startRecording();
 	    isRecording = true;
@@ -223,20 +273,23 @@ public class AudioWriter extends StreamWriter
 	
     public void restart(Date time)
     {
-    	DataOutputStream oldRaw = audioStreamRaw;
-        DataOutputStream oldFeatures = audioStreamFeatures;
-    	String timeStamp = timeString(time);
-	    if (rawOn)
-	       	audioStreamRaw = new DataOutputStream(openStreamFile(STREAM_NAME, timeStamp, GlobalApp.STREAM_EXTENSION_RAW));
-	    if (featureOn)
-	    	audioStreamFeatures = new DataOutputStream(openStreamFile(STREAM_NAME, timeStamp, GlobalApp.STREAM_EXTENSION_BIN));
-	    prevSecs = ((double)time.getTime())/1000.0d;
-	    if (rawOn && closeStreamFile(oldRaw))
-	    	writeLogTextLine("Raw audio stream successfully restarted");
-	    if (featureOn && closeStreamFile(oldFeatures))
-	    {
-	    	writeLogTextLine("Audio feature stream successfully restarted");
-	    }
+    	synchronized (streamLock)
+    	{
+	    	DataOutputStream oldRaw = audioStreamRaw;
+	        DataOutputStream oldFeatures = audioStreamFeatures;
+	    	String timeStamp = timeString(time);
+		    if (rawOn)
+		       	audioStreamRaw = openStreamFile(STREAM_NAME, timeStamp, GlobalApp.STREAM_EXTENSION_RAW);
+		    if (featureOn)
+		    	audioStreamFeatures = openStreamFile(STREAM_NAME, timeStamp, GlobalApp.STREAM_EXTENSION_BIN);
+		    prevSecs = ((double)time.getTime())/1000.0d;
+		    if (rawOn && closeStreamFile(oldRaw))
+		    	writeLogTextLine("Raw audio stream successfully restarted");
+		    if (featureOn && closeStreamFile(oldFeatures))
+		    {
+		    	writeLogTextLine("Audio feature stream successfully restarted");
+		    }
+    	}
     }
 	
 	
@@ -245,124 +298,136 @@ public class AudioWriter extends StreamWriter
         short data16bit[] = new short[bufferSamples];
     	byte data8bit[] = new byte[bufferSize];
     	
-    	double fftBufferR[] = new double[FFT_SIZE];
-    	double fftBufferI[] = new double[FFT_SIZE];
-    	double featureCepstrum[] = new double[MFCCS];
-    	
 	    int readAudioSamples = 0;
 	    while (isRecording)
 	    {
 	    	readAudioSamples = audioRecorder.read(data16bit, 0, bufferSamples);
 	    	
-	    	double currentSecs = (double)(System.currentTimeMillis())/1000.0d;
-	    	double diffSecs = currentSecs - prevSecs;
-	    	prevSecs = currentSecs;
-
-	    	if (readAudioSamples > 0)
+	    	synchronized (streamLock)
 	    	{
-	    		Log.v(TAG,"readingAudioSamples");
-	    		clearFeatureFrame();
-	    		double fN = (double)readAudioSamples;
+		    	double currentSecs = (double)(System.currentTimeMillis())/1000.0d;
+		    	double diffSecs = currentSecs - prevSecs;
+		    	prevSecs = currentSecs;
+
+		    	if (readAudioSamples > 0)
+		    	{
+		    		Log.v(TAG,"readingAudioSamples");
+		    		clearFeatureFrame();
 
-    			pushFrameFeature(diffSecs);
+	    			pushFrameFeature(diffSecs);
     			
-	    		// Write out raw audio, if enabled
-	    		if (rawOn)
-	    		{
-		    		// Convert shorts to 8-bit bytes for raw audio output
-		    		for (int i = 0; i < bufferSamples; i ++)
+		    		// Write out raw audio, if enabled
+		    		if (rawOn)
 		    		{
-		    			data8bit[i*2] = (byte)data16bit[i];
-		    			data8bit[i*2+1] = (byte)(data16bit[i] >> 8);
+			    		// Convert shorts to 8-bit bytes for raw audio output
+			    		for (int i = 0; i < bufferSamples; i ++)
+			    		{
+			    			data8bit[i*2] = (byte)data16bit[i];
+			    			data8bit[i*2+1] = (byte)(data16bit[i] >> 8);
+			    		}
+		    			try
+		    			{
+		    				audioStreamRaw.write(data8bit, 0, readAudioSamples*2);
+		    				audioStreamRaw.flush();
+		    			}
+		    			catch (IOException e)
+		    			{
+		    				e.printStackTrace();
+		    			}
 		    		}
-	    			try
-	    			{
-	    				audioStreamRaw.write(data8bit, 0, readAudioSamples*2);
-	    				audioStreamRaw.flush();
-	    			}
-	    			catch (IOException e)
-	    			{
-	    				e.printStackTrace();
-	    			}
-	    		}
 	    		
-	    		if(featureOn)
-	    		{
-		    		// L1-norm
-		    		double accum = 0;
-		    		for (int i = 0; i < readAudioSamples; i ++)
-		    		{
-		    			accum += Math.abs((double)data16bit[i]);
-		    		}
-		    		pushFrameFeature(accum/fN);
-	
-		    		// L2-norm
-		    		accum = 0;
-		    		for (int i = 0; i < readAudioSamples; i ++)
-		    		{
-		    			accum += (double)data16bit[i]*(double)data16bit[i];
-		    		}
-		    		pushFrameFeature(Math.sqrt(accum/fN));
-	
-		    		// Linf-norm
-		    		accum = 0;
-		    		for (int i = 0; i < readAudioSamples; i ++)
+		    		if (featureOn && frameLength > 0)
 		    		{
-		    			accum = Math.max(Math.abs((double)data16bit[i]),accum);
+		    			handleShortFrames(data16bit, readAudioSamples, diffSecs);
 		    		}
-		    		pushFrameFeature(accum);
-	
-		    		// Frequency analysis
-		    		Arrays.fill(fftBufferR, 0);
-		    		Arrays.fill(fftBufferI, 0);
-	
-		    		// Convert audio buffer to doubles
-		    		for (int i = 0; i < readAudioSamples; i++)
-		    		{
-		    			fftBufferR[i] = data16bit[i];
-		    		}
-	
-		    		// In-place windowing
-		    		featureWin.applyWindow(fftBufferR);
-	
-		    		// In-place FFT
-		    		featureFFT.fft(fftBufferR, fftBufferI);
-	
-		    		// Get PSD across frequency band ranges
-		    		for (int b = 0; b < (FREQ_BANDEDGES.length - 1); b ++)
-		    		{
-		    			int j = freqBandIdx[b];
-		    			int k = freqBandIdx[b+1];
-		    			accum = 0;
-		    			for (int h = j; h < k; h ++)
-		    			{
-		    				accum += fftBufferR[h]*fftBufferR[h] + fftBufferI[h]*fftBufferI[h];
-		    			}
-		    			pushFrameFeature(accum/((double)(k - j)));
-		    		}
-	
-		    		// Get MFCCs
-		    		featureCepstrum = featureMFCC.cepstrum(fftBufferR, fftBufferI);
-		    		for (int i = 0; i < featureCepstrum.length; i ++)
+		    		else if (featureOn)
 		    		{
-		    			pushFrameFeature(featureCepstrum[i]);
+			    		// Norms, band powers and MFCCs of the whole read
+			    		frameFeatures.load(data16bit, readAudioSamples);
+			    		pushFrameFeatures(frameFeatures);
 	
+			    		// Write out features
+			    		writeFeatureFrame(featureBuffer, audioStreamFeatures, OUTPUT_FORMAT_FLOAT);
 		    		}
-	
-		    		
-		    		// Write out features
-		    		writeFeatureFrame(featureBuffer, audioStreamFeatures, OUTPUT_FORMAT_FLOAT);
-	    		}
+		    	}
 	    	}
 	    }
 
 	    // Try to close output streams because recording has been stopped
-	    if (rawOn && closeStreamFile(audioStreamRaw))
-	    	writeLogTextLine("Raw audio stream successfully stopped");
-	    if (featureOn && closeStreamFile(audioStreamFeatures))
-	      	writeLogTextLine("Audio feature stream successfully stopped");
+	    synchronized (streamLock)
+	    {
+		    if (rawOn && closeStreamFile(audioStreamRaw))
+		    	writeLogTextLine("Raw audio stream successfully stopped");
+		    if (featureOn && closeStreamFile(audioStreamFeatures))
+		      	writeLogTextLine("Audio feature stream successfully stopped");
+	    }
 	}
 
+    /**
+     * Slides a frameLength window over the samples read, one hop at a time.
+     * Overlap is carried between reads, so frames straddle read boundaries.
+     */
+    private void handleShortFrames(short[] data, int samples, double diffSecs)
+    {
+    	for (int i = 0; i < samples; i ++)
+    	{
+    		frameSamples[frameFill++] = data[i];
+    		samplesSinceFrame ++;
+    		if (frameFill == frameLength)
+    		{
+    			analyseShortFrame();
+    			System.arraycopy(frameSamples, frameHop, frameSamples, 0, frameLength - frameHop);
+    			frameFill = frameLength - frameHop;
+    		}
+    	}
+    	
+    	if (perFrameOn)
+    		return;
+    	
+    	// Aggregate the frames completed during this read
+    	clearFeatureFrame();
+    	pushFrameFeature(diffSecs);
+    	AudioFeatures.norms(data, samples, readNorms, 0);
+    	for (int i = 0; i < readNorms.length; i ++)
+    		pushFrameFeature(readNorms[i]);
+    	pushFrameFeature(cepsMoments[0].n);
+    	for (RunningMoments m: bandMoments)
+    		pushFrameFeature(m.mean);
+    	for (RunningMoments m: cepsMoments)
+    		pushFrameFeature(m.mean);
+    	for (RunningMoments m: cepsMoments)
+    		pushFrameFeature(m.std());
+    	writeFeatureFrame(featureBuffer, audioStreamFeatures, OUTPUT_FORMAT_FLOAT);
+    	
+    	for (RunningMoments m: bandMoments)
+    		m.clear();
+    	for (RunningMoments m: cepsMoments)
+    		m.clear();
+    }
+    
+    private void analyseShortFrame()
+    {
+    	frameFeatures.load(frameSamples, frameLength);
+    	
+    	if (perFrameOn)
+    	{
+    		clearFeatureFrame();
+    		pushFrameFeature((double)samplesSinceFrame/(double)RECORDER_SAMPLERATE);
+    		pushFrameFeatures(frameFeatures);
+    		writeFeatureFrame(featureBuffer, audioStreamFeatures, OUTPUT_FORMAT_FLOAT);
+    	}
+    	else
+    	{
+    		frameFeatures.bandPowers(shortBandPower, 0);
+    		frameFeatures.cepstrum(shortCepstrum, 0);
+    		for (int b = 0; b < shortBandPower.length; b ++)
+    			bandMoments[b].push(shortBandPower[b]);
+    		for (int i = 0; i < shortCepstrum.length; i ++)
+    			cepsMoments[i].push(shortCepstrum[i]);
+    	}
+    	samplesSinceFrame = 0;
+    }
+
 	@Override
 	public void init() {
 		Log.v(TAG,"audioWriter initialized");
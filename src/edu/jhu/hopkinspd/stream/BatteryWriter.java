@@ -40,6 +40,8 @@ import android.util.Log;
 public class BatteryWriter extends StreamWriter
 {
 	private static final String STREAM_NAME = "batt";
+	private static final String[] RAW_COLUMNS = {"diffSecs", "level"};
+	private static final String[] RAW_UNITS = {"s", "%"};
 	private static final int STREAM_FEATURES = 2;
 	private static final String TAG = GlobalApp.TAG + "|BatteryWriter";
 
@@ -60,16 +62,14 @@ public class BatteryWriter extends StreamWriter
 	        	double diffSecs = currentSecs - prevSecs;
 	        	prevSecs = currentSecs;
 
-	        	double[] battData = new double[2];
-	        	battData[0] = diffSecs;
-	        	battData[1] = intent.getIntExtra("level", 0);
+	        	int level = intent.getIntExtra("level", 0);
 	        	
 //	        	int v = Float.floatToIntBits((float)battData[0]);
 //	        	Log.i(TAG, "batt " + diffSecs + " " + intent.getIntExtra("level", 0));
 //	        	Log.i(TAG, "batt " + battData[0] + " " + battData[1]);
 //	        	Log.i(TAG, "batt " + v + " " + Float.intBitsToFloat(v));
 				
-	        	writeFeatureFrame(battData, sensorStream, dataOutputFormat);
+	        	writeRawFrame(sensorStream, dataOutputFormat, diffSecs, level);
 			}
 		}
 	};
@@ -85,6 +85,7 @@ public class BatteryWriter extends StreamWriter
 		app.registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
 
     	allocateFrameFeatureBuffer(STREAM_FEATURES);
+    	rawMult = new double[] {1e6, 1.0};
         
         logTextStream = app.openLogTextFile(STREAM_NAME);
 	    writeLogTextLine("Created " + this.getClass().getName() + " instance");
@@ -105,7 +106,8 @@ public class BatteryWriter extends StreamWriter
 //	    prevSecs = (double)System.currentTimeMillis()/1000.0d;
 	    prevSecs = ((double)startTime.getTime())/1000.0d;
 	    String timeStamp = timeString(startTime);
-	    sensorStream = openStreamFile(STREAM_NAME, timeStamp, feature_stream_extension);
+	    sensorStream = openStreamFile(STREAM_NAME, timeStamp, feature_stream_extension,
+					RAW_COLUMNS, RAW_UNITS, Double.NaN);
     	
     	isRecording = true;
 	    writeLogTextLine("Battery recording started");
@@ -130,7 +132,8 @@ public class BatteryWriter extends StreamWriter
     {
     	DataOutputStream oldStream = sensorStream;
     	String timeStamp = timeString(time);
-    	sensorStream = openStreamFile(STREAM_NAME, timeStamp, feature_stream_extension);
+    	sensorStream = openStreamFile(STREAM_NAME, timeStamp, feature_stream_extension,
+					RAW_COLUMNS, RAW_UNITS, Double.NaN);
 	    prevSecs = ((double)time.getTime())/1000.0d;
     	if (closeStreamFile(oldStream))
     	{
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.stream;
+
+import java.io.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+import edu.jhu.hopkinspd.GlobalApp;
+
+/**
+ * Output sink for a single stream file. The recording thread encodes frames
+ * into a lock-free single-producer/single-consumer byte ring, and the shared
+ * StreamIOThread drains the ring to the card once it is half full or the
+ * oldest pending byte is older than the stream's durability window.
+ *
+ * flush() marks a frame boundary and publishes the frame to the I/O thread,
+ * close() blocks until everything has been written and the file is closed.
+ */
+public class BufferedStreamSink extends OutputStream
+{
+	private static final String TAG = GlobalApp.TAG + "|BufferedStreamSink";
+	
+	public static final int DEFAULT_BUFFER_BYTES = 8192;
+	public static final long DEFAULT_MAX_LATENCY_MILLIS = 5000;
+	private static final long CLOSE_TIMEOUT_MILLIS = 10000;
+	private static final long FULL_WAIT_NANOS = 200000;
+
+	private final OutputStream out;
+	private final byte[] ring;
+	private final int mask;
+	private final int highWater;
+	private final long maxLatencyMillis;
+
+	// Consumer position, only advanced by the I/O thread
+	private volatile long head = 0;
+	// Producer position visible to the I/O thread
+	private volatile long tail = 0;
+	// Producer position including the frame being encoded
+	private long writePos = 0;
+
+	private volatile boolean closeRequested = false;
+	private final CountDownLatch closed = new CountDownLatch(1);
+	
+	// I/O thread state
+	private long pendingSinceMillis = -1;
+	private boolean failed = false;
+
+	public BufferedStreamSink(OutputStream out)
+	{
+		this(out, DEFAULT_BUFFER_BYTES, DEFAULT_MAX_LATENCY_MILLIS);
+	}
+
+	public BufferedStreamSink(OutputStream out, int bufferBytes, long maxLatencyMillis)
+	{
+		int capacity = 16;
+		while (capacity < bufferBytes)
+			capacity <<= 1;
+		this.out = out;
+		this.ring = new byte[capacity];
+		this.mask = capacity - 1;
+		this.highWater = capacity/2;
+		this.maxLatencyMillis = maxLatencyMillis;
+		StreamIOThread.register(this);
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		while (writePos - head >= ring.length)
+			waitForSpace();
+		ring[(int)(writePos & mask)] = (byte)b;
+		writePos ++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		while (len > 0)
+		{
+			int free = ring.length - (int)(writePos - head);
+			if (free == 0)
+			{
+				waitForSpace();
+				continue;
+			}
+			int n = Math.min(len, free);
+			int pos = (int)(writePos & mask);
+			int first = Math.min(n, ring.length - pos);
+			System.arraycopy(b, off, ring, pos, first);
+			System.arraycopy(b, off + first, ring, 0, n - first);
+			writePos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Called once per frame by StreamWriter, publishes the encoded frame.
+	 */
+	@Override
+	public void flush()
+	{
+		long published = tail;
+		if (writePos != published)
+		{
+			tail = writePos;
+			// Wake the I/O thread when it has to start a durability window
+			// or when the ring is getting full
+			long consumed = head;
+			if (published == consumed || writePos - consumed >= highWater)
+				StreamIOThread.wakeup();
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		flush();
+		closeRequested = true;
+		StreamIOThread.wakeup();
+		try
+		{
+			if (!closed.await(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+				Log.e(TAG, "timed out waiting for stream file to close");
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void waitForSpace() throws IOException
+	{
+		// Nothing drains a closed ring any more
+		if (closeRequested)
+			throw new IOException("Stream closed");
+		tail = writePos;
+		StreamIOThread.wakeup();
+		LockSupport.parkNanos(FULL_WAIT_NANOS);
+	}
+
+	boolean isClosed()
+	{
+		return closed.getCount() == 0;
+	}
+
+	/**
+	 * Runs on the I/O thread. Writes out pending bytes that are due and
+	 * returns the time at which this sink next needs servicing.
+	 */
+	long service(long now)
+	{
+		if (isClosed())
+			return Long.MAX_VALUE;
+		
+		// Read the close flag first, so the tail read below covers
+		// everything published before close()
+		boolean closing = closeRequested;
+		long t = tail;
+		long h = head;
+		if (t != h)
+		{
+			if (pendingSinceMillis < 0)
+				pendingSinceMillis = now;
+			if (closing || (t - h) >= highWater || (now - pendingSinceMillis) >= maxLatencyMillis)
+			{
+				drain(h, t);
+				pendingSinceMillis = -1;
+			}
+		}
+
+		if (closing)
+		{
+			try
+			{
+				out.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			closed.countDown();
+			return Long.MAX_VALUE;
+		}
+		return (pendingSinceMillis < 0) ? Long.MAX_VALUE : pendingSinceMillis + maxLatencyMillis;
+	}
+
+	private void drain(long h, long t)
+	{
+		if (!failed)
+		{
+			try
+			{
+				int pos = (int)(h & mask);
+				int n = (int)(t - h);
+				int first = Math.min(n, ring.length - pos);
+				out.write(ring, pos, first);
+				if (n > first)
+					out.write(ring, 0, n - first);
+			}
+			catch (IOException e)
+			{
+				// Keep draining so the recording thread never blocks on a dead file
+				e.printStackTrace();
+				failed = true;
+			}
+		}
+		head = t;
+	}
+}
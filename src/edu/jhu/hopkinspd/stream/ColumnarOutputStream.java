@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.stream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Versioned, self-describing columnar stream file. All fields are
+ * little-endian.
+ *
+ * Header: magic "HPDC", u16 version, u32 header length, then the header
+ * fields: stream name, device ID and user ID strings (u16 byte length +
+ * UTF-8), i64 start time (ms since epoch, the file open time unless set
+ * with setStartTime()), f64 sample rate in Hz (NaN if not fixed), u16
+ * column count, and per column its name, unit and a u8 type code.
+ * TYPE_DELTA columns are followed by their f64 multiplier.
+ *
+ * Blocks follow until end of file: u32 row count, u32 payload length, then
+ * each column's values stored contiguously. Readers can skip or memory-map
+ * blocks from the payload length alone.
+ *
+ * TYPE_DELTA columns are fixed-point: each value is rounded to
+ * value*multiplier, and a column is stored as a u32 byte length followed by
+ * zig-zag varints of its first value and the successive differences.
+ *
+ * Rows are buffered in memory and written a block at a time: when
+ * BLOCK_ROWS rows have collected, when a row arrives more than
+ * maxBlockMillis after the block's first row, and on close(). So slow
+ * streams reach the sink within one row interval of that limit. Columns
+ * not described before the first row are named c0, c1, ... from the first
+ * row's width.
+ */
+public class ColumnarOutputStream extends DataOutputStream
+{
+	public static final byte[] MAGIC = {'H', 'P', 'D', 'C'};
+	public static final int VERSION = 1;
+	public static final int TYPE_FLOAT = 1;
+	public static final int TYPE_DOUBLE = 2;
+	public static final int TYPE_DELTA = 3;
+	public static final int BLOCK_ROWS = 512;
+	public static final long DEFAULT_MAX_BLOCK_MILLIS = 10000;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String streamName;
+	private final String deviceID;
+	private final String userID;
+	private long startMillis;
+	private int type;
+	private double[] mult = null;
+	private double sampleRate = Double.NaN;
+	private String[] names = null;
+	private String[] units = null;
+
+	private int columns = 0;
+	private boolean headerWritten = false;
+	private double[] row = new double[16];
+	private int rowWidth = 0;
+	private double[][] block = null;
+	private int rows = 0;
+	private ByteBuffer blockBytes = null;
+	private long maxBlockNanos = DEFAULT_MAX_BLOCK_MILLIS*1000000L;
+	private long blockStartNanos = 0;
+
+	public ColumnarOutputStream(OutputStream out, String streamName, String deviceID, String userID, int type)
+	{
+		super(out);
+		this.streamName = streamName;
+		this.deviceID = deviceID;
+		this.userID = userID;
+		this.type = type;
+		startMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * Names the columns before the first row is written. Later calls are
+	 * ignored, the header is already on disk by then.
+	 */
+	public synchronized void describe(String[] names, String[] units, double sampleRate)
+	{
+		if (headerWritten)
+			return;
+		this.names = names;
+		this.units = units;
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * Stores all columns as delta-coded fixed-point values with the given
+	 * per-column multipliers, e.g. 1e6 for microsecond times. Must be called
+	 * before the first row, and mult must cover every column.
+	 */
+	public synchronized void quantize(double[] mult)
+	{
+		if (headerWritten || mult == null)
+			return;
+		this.mult = mult;
+		type = TYPE_DELTA;
+	}
+
+	/**
+	 * Sets the start time stored in the header, for streams whose time
+	 * column is relative to something other than the file open time. Must
+	 * be called before the first row.
+	 */
+	public synchronized void setStartTime(long millis)
+	{
+		if (headerWritten)
+			return;
+		startMillis = millis;
+	}
+
+	/**
+	 * Longest time rows wait in memory before their block is written,
+	 * normally the durability window of the sink below.
+	 */
+	public synchronized void setMaxBlockMillis(long millis)
+	{
+		maxBlockNanos = millis*1000000L;
+	}
+
+	public synchronized void writeValue(double value)
+	{
+		if (rowWidth == row.length)
+		{
+			// Only grows while the first row fixes the column count
+			double[] wider = new double[row.length*2];
+			System.arraycopy(row, 0, wider, 0, row.length);
+			row = wider;
+		}
+		row[rowWidth++] = value;
+	}
+
+	public synchronized void endRow() throws IOException
+	{
+		if (!headerWritten)
+			writeHeader(rowWidth);
+		
+		// Short rows are padded with NaN, extra values dropped
+		for (int c = 0; c < columns; c ++)
+			block[c][rows] = (c < rowWidth) ? row[c] : Double.NaN;
+		rowWidth = 0;
+		
+		long now = System.nanoTime();
+		if (rows == 0)
+			blockStartNanos = now;
+		if (++rows == BLOCK_ROWS || now - blockStartNanos >= maxBlockNanos)
+			writeBlock();
+	}
+
+	private void writeHeader(int width) throws IOException
+	{
+		columns = (names != null) ? names.length : width;
+		if (type == TYPE_DELTA && mult.length < columns)
+			type = TYPE_FLOAT;
+		block = new double[columns][BLOCK_ROWS];
+		
+		// Varints take at most 10 bytes per value
+		int blockSize = (type == TYPE_DELTA) ? columns*(4 + BLOCK_ROWS*10) : columns*BLOCK_ROWS*bytesPerValue();
+		blockBytes = ByteBuffer.allocate(8 + blockSize).order(ByteOrder.LITTLE_ENDIAN);
+
+		ByteArrayOutputStream fields = new ByteArrayOutputStream();
+		ByteBuffer b = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+		putString(fields, streamName);
+		putString(fields, deviceID);
+		putString(fields, userID);
+		b.putLong(startMillis).putDouble(sampleRate);
+		fields.write(b.array(), 0, 16);
+		b.clear();
+		b.putShort((short)columns);
+		fields.write(b.array(), 0, 2);
+		for (int c = 0; c < columns; c ++)
+		{
+			putString(fields, (names != null) ? names[c] : "c" + c);
+			putString(fields, (units != null && c < units.length) ? units[c] : "");
+			fields.write(type);
+			if (type == TYPE_DELTA)
+			{
+				b.clear();
+				b.putDouble(mult[c]);
+				fields.write(b.array(), 0, 8);
+			}
+		}
+
+		b.clear();
+		b.put(MAGIC).putShort((short)VERSION).putInt(fields.size());
+		out.write(b.array(), 0, 10);
+		fields.writeTo(out);
+		headerWritten = true;
+	}
+
+	private static void putString(ByteArrayOutputStream fields, String s) throws IOException
+	{
+		byte[] bytes = (s == null ? "" : s).getBytes(UTF8);
+		fields.write(bytes.length & 0xff);
+		fields.write((bytes.length >> 8) & 0xff);
+		fields.write(bytes);
+	}
+
+	private int bytesPerValue()
+	{
+		return (type == TYPE_DOUBLE) ? 8 : 4;
+	}
+
+	private void writeBlock() throws IOException
+	{
+		if (rows == 0)
+			return;
+		blockBytes.clear();
+		blockBytes.putInt(rows).putInt(0);
+		for (int c = 0; c < columns; c ++)
+		{
+			double[] col = block[c];
+			if (type == TYPE_DELTA)
+				putDeltaColumn(col, mult[c]);
+			else if (type == TYPE_DOUBLE)
+				for (int r = 0; r < rows; r ++)
+					blockBytes.putDouble(col[r]);
+			else
+				for (int r = 0; r < rows; r ++)
+					blockBytes.putFloat((float)col[r]);
+		}
+		blockBytes.putInt(4, blockBytes.position() - 8);
+		out.write(blockBytes.array(), 0, blockBytes.position());
+		rows = 0;
+	}
+
+	private void putDeltaColumn(double[] col, double m)
+	{
+		int lengthPos = blockBytes.position();
+		blockBytes.putInt(0);
+		long prev = 0;
+		for (int r = 0; r < rows; r ++)
+		{
+			// NaN padding of short rows is stored as zero
+			long q = Double.isNaN(col[r]) ? 0 : Math.round(col[r]*m);
+			long d = q - prev;
+			prev = q;
+			
+			// Zig-zag so small negative differences stay short
+			long z = (d << 1) ^ (d >> 63);
+			while ((z & ~0x7fL) != 0)
+			{
+				blockBytes.put((byte)((z & 0x7f) | 0x80));
+				z >>>= 7;
+			}
+			blockBytes.put((byte)z);
+		}
+		blockBytes.putInt(lengthPos, blockBytes.position() - lengthPos - 4);
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			if (headerWritten)
+				writeBlock();
+		}
+		finally
+		{
+			super.close();
+		}
+	}
+}
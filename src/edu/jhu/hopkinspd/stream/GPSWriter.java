@@ -46,6 +46,10 @@ import android.util.Log;
 public class GPSWriter extends StreamWriter
 {
 	private static final String STREAM_NAME = "gps";
+	private static final String[] COLUMNS = {"diffSecs", "latitude", "longitude", "altitude"};
+	private static final String[] UNITS = {"s", "deg", "deg", "m"};
+	private static final String[] EXTRA_COLUMNS = {"diffSecs", "latitude", "longitude", "altitude", "accuracy", "bearing", "speed"};
+	private static final String[] EXTRA_UNITS = {"s", "deg", "deg", "m", "m", "deg", "m/s"};
 	private static int GPS_SAMPLERATE = 1;		// GPS update frequency in seconds
 	private static boolean GPS_EXTRA_FEATURES = false;
 	private static final String TAG = GlobalApp.TAG + "|" + STREAM_NAME;
@@ -55,12 +59,16 @@ public class GPSWriter extends StreamWriter
 
 	private LocationManager locManager = null;
 	private DataOutputStream locStream = null;
+	private double[] gpsData = new double[4];
+	private double[] gpsExtraData = new double[7];
 	
     public GPSWriter(GlobalApp app)
     {
     	super(app);
     	if(format == DATA_FORMAT_BINARY)
     		dataOutputFormat = OUTPUT_FORMAT_DOUBLE;
+    	// Latitude/longitude need double precision in columnar files as well
+    	columnType = ColumnarOutputStream.TYPE_DOUBLE;
 		
     	logTextStream = app.openLogTextFile(STREAM_NAME);
 	    writeLogTextLine("Created " + this.getClass().getName() + " instance");
@@ -102,7 +110,8 @@ public class GPSWriter extends StreamWriter
 	    prevSecs = ((double)startTime.getTime())/1000.0d;
 //	    prevSecs = (double)System.currentTimeMillis()/1000.0d;
 	    String timeStamp = timeString(startTime);
-	    locStream = openStreamFile(STREAM_NAME, timeStamp, feature_stream_extension);
+	    locStream = openStreamFile(STREAM_NAME, timeStamp, feature_stream_extension,
+	    			GPS_EXTRA_FEATURES ? EXTRA_COLUMNS : COLUMNS, GPS_EXTRA_FEATURES ? EXTRA_UNITS : UNITS, Double.NaN);
 	    
     	isRecording = true;
 	    writeLogTextLine("GPS recording started");
@@ -123,7 +132,8 @@ public class GPSWriter extends StreamWriter
     {
     	DataOutputStream oldStream = locStream;
     	String timeStamp = timeString(time);
-    	locStream = openStreamFile(STREAM_NAME, timeStamp, feature_stream_extension);
+    	locStream = openStreamFile(STREAM_NAME, timeStamp, feature_stream_extension,
+	    			GPS_EXTRA_FEATURES ? EXTRA_COLUMNS : COLUMNS, GPS_EXTRA_FEATURES ? EXTRA_UNITS : UNITS, Double.NaN);
 	    prevSecs = ((double)time.getTime())/1000.0d;
     	if (closeStreamFile(oldStream))
     	{
@@ -137,28 +147,30 @@ public class GPSWriter extends StreamWriter
 		Log.v(TAG, "onLocationChanged");
 		if ((locStream != null) && isRecording)
 		{
+			// getLastKnownLocation returns a fresh copy, so only ask once per fix
+			Location last = locManager.getLastKnownLocation(LOC_PROVIDER);
+			if (last == null)
+				return;
 //        	double fixSecs = (double)locManager.getLastKnownLocation(LocationManager.GPS_PROVIDER).getTime()/1000.0d;
 	    	double fixSecs = (double)System.currentTimeMillis()/1000.0d;
         	double diffSecs = fixSecs - prevSecs;
         	prevSecs = fixSecs;
-        	double[] gpsData;
         	if(GPS_EXTRA_FEATURES){
-        		gpsData = new double[7]; 
-        		gpsData[0] = diffSecs;
-            	gpsData[1] = locManager.getLastKnownLocation(LOC_PROVIDER).getLatitude();
-            	gpsData[2] = locManager.getLastKnownLocation(LOC_PROVIDER).getLongitude();
-            	gpsData[3] = locManager.getLastKnownLocation(LOC_PROVIDER).getAltitude();
-            	gpsData[4] = locManager.getLastKnownLocation(LOC_PROVIDER).getAccuracy();
-            	gpsData[5] = locManager.getLastKnownLocation(LOC_PROVIDER).getBearing();
-            	gpsData[6] = locManager.getLastKnownLocation(LOC_PROVIDER).getSpeed();
+        		gpsExtraData[0] = diffSecs;
+        		gpsExtraData[1] = last.getLatitude();
+        		gpsExtraData[2] = last.getLongitude();
+        		gpsExtraData[3] = last.getAltitude();
+        		gpsExtraData[4] = last.getAccuracy();
+        		gpsExtraData[5] = last.getBearing();
+        		gpsExtraData[6] = last.getSpeed();
+            	writeFeatureFrame(gpsExtraData, locStream, dataOutputFormat);
         	}else{
-        		gpsData = new double[4];
 	        	gpsData[0] = diffSecs;
-	        	gpsData[1] = locManager.getLastKnownLocation(LOC_PROVIDER).getLatitude();
-	        	gpsData[2] = locManager.getLastKnownLocation(LOC_PROVIDER).getLongitude();
-	        	gpsData[3] = locManager.getLastKnownLocation(LOC_PROVIDER).getAltitude();
+	        	gpsData[1] = last.getLatitude();
+	        	gpsData[2] = last.getLongitude();
+	        	gpsData[3] = last.getAltitude();
+            	writeFeatureFrame(gpsData, locStream, dataOutputFormat);
         	}
-        	writeFeatureFrame(gpsData, locStream, dataOutputFormat);
 		}
 	}
 	
@@ -43,6 +43,8 @@ import android.util.Log;
 public class LightWriter extends StreamWriter
 {
 	private static final String STREAM_NAME = "light";
+	private static final String[] RAW_COLUMNS = {"diffSecs", "light"};
+	private static final String[] RAW_UNITS = {"s", "lux"};
 
 	private static final int SENSOR_TYPE = Sensor.TYPE_LIGHT;
 	private int SENSOR_RATE;
@@ -60,6 +62,7 @@ public class LightWriter extends StreamWriter
 		SENSOR_RATE = Integer.parseInt(getStringPref(app.getResources().getString(R.string.sensorRate)));
     	sensorManager = (SensorManager)app.getSystemService(Context.SENSOR_SERVICE);
         sensor = sensorManager.getDefaultSensor(SENSOR_TYPE);
+        rawMult = sensorRawMult(sensor, 1);
         Log.i(TAG, "max light value " + sensor.getMaximumRange());
         logTextStream = app.openLogTextFile(STREAM_NAME);
 	    writeLogTextLine("Created " + this.getClass().getName() + " instance");
@@ -67,29 +70,64 @@ public class LightWriter extends StreamWriter
 
     public void init()
     {
-        sensorManager.registerListener(this, sensor, SENSOR_RATE);
+        registerSensorListener(sensorManager, sensor, SENSOR_RATE, android.os.Process.THREAD_PRIORITY_DEFAULT);
         Log.v(TAG,"lightWriter initialized");
     }
 
     public void destroy()
     {
-    	sensorManager.unregisterListener(this);
+    	unregisterSensorListener(sensorManager);
     	sensorManager = null;
     	sensor = null;
     }
     
-    public void start(Date startTime)
+    public void start(final Date startTime)
+    {
+    	runOnSensorThread(new Runnable()
+    	{
+    		public void run()
+    		{
+    			startStreams(startTime);
+    		}
+    	});
+    }
+    
+    public void stop(final Date stopTime)
+    {
+    	runOnSensorThread(new Runnable()
+    	{
+    		public void run()
+    		{
+    			stopStreams(stopTime);
+    		}
+    	});
+    }
+    
+    public void restart(final Date time)
+    {
+    	runOnSensorThread(new Runnable()
+    	{
+    		public void run()
+    		{
+    			restartStreams(time);
+    		}
+    	});
+    }
+    
+    private void startStreams(Date startTime)
     {
 //	    prevSecs = (double)System.currentTimeMillis()/1000.0d;
 	    prevSecs = ((double)startTime.getTime())/1000.0d;
+	    anchorEventTime(startTime);
 	    String timeStamp = timeString(startTime);
-	    sensorStream = openStreamFile(STREAM_NAME, timeStamp, feature_stream_extension);
+	    sensorStream = openStreamFile(STREAM_NAME, timeStamp, feature_stream_extension,
+					RAW_COLUMNS, RAW_UNITS, Double.NaN);
     	
     	isRecording = true;
 	    writeLogTextLine("Light recording started");
     }
 
-    public void stop(Date stopTime)
+    private void stopStreams(Date stopTime)
     {
     	isRecording = false;
     	if (closeStreamFile(sensorStream))
@@ -98,12 +136,14 @@ public class LightWriter extends StreamWriter
 		}
     }
 
-    public void restart(Date time)
+    private void restartStreams(Date time)
     {
     	DataOutputStream oldStream = sensorStream;
     	String timeStamp = timeString(time);
-    	sensorStream = openStreamFile(STREAM_NAME, timeStamp, feature_stream_extension);
+    	sensorStream = openStreamFile(STREAM_NAME, timeStamp, feature_stream_extension,
+					RAW_COLUMNS, RAW_UNITS, Double.NaN);
 	    prevSecs = ((double)time.getTime())/1000.0d;
+	    anchorEventTime(time);
     	if (closeStreamFile(oldStream))
     	{
 		    writeLogTextLine("Light recording successfully restarted");
@@ -117,15 +157,12 @@ public class LightWriter extends StreamWriter
 		if ((sensorStream != null) && isRecording)
 		{
 //	    	double currentSecs = ((double)event.timestamp)/1000000000.0d;
-	    	double currentSecs = (double)System.currentTimeMillis()/1000.0d;
+	    	double currentSecs = sensorEventSecs(event);
         	double diffSecs = currentSecs - prevSecs;
         	prevSecs = currentSecs;
 
-        	double[] proxData = new double[2];
-        	proxData[0] = diffSecs;
-        	proxData[1] = event.values[0];
 //        	Log.v(TAG, "receive light event " + event.values[0]);
-        	writeFeatureFrame(proxData, sensorStream, dataOutputFormat);
+        	writeRawFrame(sensorStream, dataOutputFormat, diffSecs, event.values[0]);
 		}
 	}
     
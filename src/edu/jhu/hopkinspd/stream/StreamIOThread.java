@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.stream;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.Process;
+
+/**
+ * Single background writer stage for all stream files. Sensor and receiver
+ * callbacks only encode into their BufferedStreamSink rings, this thread does
+ * all of the card I/O. It exits once the last sink has been closed.
+ */
+public class StreamIOThread extends Thread
+{
+	private static volatile StreamIOThread instance = null;
+
+	private final ArrayList<BufferedStreamSink> sinks = new ArrayList<BufferedStreamSink>();
+
+	private StreamIOThread()
+	{
+		super("StreamIO Thread");
+		setDaemon(true);
+	}
+
+	static synchronized void register(BufferedStreamSink sink)
+	{
+		if (instance == null)
+		{
+			instance = new StreamIOThread();
+			instance.sinks.add(sink);
+			instance.start();
+		}
+		else
+		{
+			instance.sinks.add(sink);
+			LockSupport.unpark(instance);
+		}
+	}
+
+	static void wakeup()
+	{
+		StreamIOThread thread = instance;
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+
+	@Override
+	public void run()
+	{
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		BufferedStreamSink[] active = new BufferedStreamSink[0];
+		while (true)
+		{
+			synchronized (StreamIOThread.class)
+			{
+				for (BufferedStreamSink sink : active)
+				{
+					if (sink.isClosed())
+						sinks.remove(sink);
+				}
+				if (sinks.isEmpty())
+				{
+					instance = null;
+					return;
+				}
+				active = sinks.toArray(new BufferedStreamSink[sinks.size()]);
+			}
+
+			long now = System.currentTimeMillis();
+			long next = Long.MAX_VALUE;
+			for (BufferedStreamSink sink : active)
+			{
+				next = Math.min(next, sink.service(now));
+			}
+
+			if (next == Long.MAX_VALUE)
+				LockSupport.park(this);
+			else if (next > now)
+				LockSupport.parkNanos(this, (next - now)*1000000L);
+		}
+	}
+}
@@ -32,9 +32,13 @@ package edu.jhu.hopkinspd.stream;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import edu.jhu.hopkinspd.GlobalApp;
 import edu.jhu.hopkinspd.R;
+import edu.jhu.hopkinspd.math.FrameFeatures;
+import edu.jhu.hopkinspd.utils.ArtifactManifest;
 
 
 import android.content.SharedPreferences;
@@ -52,13 +56,14 @@ implements LocationListener, SensorEventListener
 	public static final int OUTPUT_FORMAT_SHORT = 1;
 	public static final int OUTPUT_FORMAT_FLOAT = 2;
 	public static final int OUTPUT_FORMAT_DOUBLE = 3;
+	public static final int OUTPUT_FORMAT_COLUMNAR = 4;
 	
 	protected GlobalApp app;
 	protected BufferedWriter debugTextStream = null;
 	protected BufferedWriter logTextStream = null;
 	public String logTextFileName = null;
     public double prevSecs = 0;
-	public boolean isRecording = false;
+	public volatile boolean isRecording = false;
 	public double[] featureBuffer = null;
 	public double[] featureMult = null;
 	public int featureCount = 0;
@@ -68,6 +73,39 @@ implements LocationListener, SensorEventListener
 	protected int dataOutputFormat;
 	public static final int DATA_FORMAT_TEXT = 0;
 	public static final int DATA_FORMAT_BINARY = 1;
+	public static final int DATA_FORMAT_COLUMNAR = 2;
+	public static final int DATA_FORMAT_COMPRESSED = 3;
+
+	private static final long SENSOR_TASK_TIMEOUT_MS = 5000;
+	
+	// Value type of columnar stream files, see ColumnarOutputStream
+	protected int columnType = ColumnarOutputStream.TYPE_FLOAT;
+	
+	// Fixed-point multipliers of the described (raw) streams, which are
+	// delta coded in the compressed format. Like featureMult for SHORT.
+	protected double[] rawMult = null;
+	
+	// Number formatting for CSV streams, into a reusable byte buffer
+	protected AsciiNumberFormat textFormat = new AsciiNumberFormat(AsciiNumberFormat.SHORTEST);
+	private final byte[] textBuffer = new byte[AsciiNumberFormat.MAX_LENGTH + 1];
+	
+	// Per-stream durability window of the buffered file sink
+	protected int sinkBufferBytes = BufferedStreamSink.DEFAULT_BUFFER_BYTES;
+	protected long sinkLatencyMillis = BufferedStreamSink.DEFAULT_MAX_LATENCY_MILLIS;
+	
+	// Open stream files, so closeStreamFile() can mark them sealed in the manifest
+	private final HashMap<OutputStream, File> openFiles = new HashMap<OutputStream, File>();
+	
+	// Looper thread that receives this writer's sensor callbacks
+	protected HandlerThread sensorThread = null;
+	private volatile Handler sensorHandler = null;
+	
+	// Hardware batching: sample times come from SensorEvent.timestamp,
+	// anchored to wall-clock time once per stream file
+	protected boolean batchingMode = false;
+	private double batchLatencySecs = 0;
+	private volatile double eventTimeOffsetSecs = Double.NaN;
+	private volatile boolean eventTimeChecked = false;
 	
 	public StreamWriter(GlobalApp application){
 		app = application;
@@ -85,6 +123,12 @@ implements LocationListener, SensorEventListener
 			feature_stream_extension = GlobalApp.STREAM_EXTENSION_BIN;
 			dataOutputFormat = GlobalApp.OUTPUT_FORMAT_FLOAT;
 			break;
+		case DATA_FORMAT_COLUMNAR:
+		case DATA_FORMAT_COMPRESSED:
+			raw_stream_extension = GlobalApp.STREAM_EXTENSION_RAW_COLUMNAR;
+			feature_stream_extension = GlobalApp.STREAM_EXTENSION_BIN_COLUMNAR;
+			dataOutputFormat = OUTPUT_FORMAT_COLUMNAR;
+			break;
 		}
 	}
 	
@@ -105,7 +149,22 @@ implements LocationListener, SensorEventListener
 		DataOutputStream dos = null;
 	    try
 	    {
-	    	dos = new DataOutputStream(new FileOutputStream(fileName));
+	    	OutputStream sink = openSink(new FileOutputStream(fileName));
+	    	if (streamExt.equals(GlobalApp.STREAM_EXTENSION_RAW_COLUMNAR)
+	    			|| streamExt.equals(GlobalApp.STREAM_EXTENSION_BIN_COLUMNAR))
+	    	{
+	    		ColumnarOutputStream cos = new ColumnarOutputStream(sink, streamName, phoneID, userID, columnType);
+	    		cos.setMaxBlockMillis(sinkLatencyMillis);
+	    		dos = cos;
+	    	}
+	    	else
+	    		dos = new DataOutputStream(sink);
+	    	File file = new File(fileName);
+	    	app.getManifest().record(file, ArtifactManifest.OPEN, 0);
+	    	synchronized (openFiles)
+	    	{
+	    		openFiles.put(dos, file);
+	    	}
 	    }
 	    catch (FileNotFoundException e)
 	    {
@@ -114,6 +173,34 @@ implements LocationListener, SensorEventListener
 	    return dos;
 	}
 	
+	/**
+	 * Wraps a newly opened stream file. Frames are only encoded into memory
+	 * here, the shared StreamIOThread writes them out at most every
+	 * sinkLatencyMillis, and always on close.
+	 */
+	protected OutputStream openSink(OutputStream fileStream)
+	{
+		return new BufferedStreamSink(fileStream, sinkBufferBytes, sinkLatencyMillis);
+	}
+	
+	/**
+	 * Opens a stream file and, in the columnar formats, names its columns.
+	 * In the compressed format the columns are also quantised with rawMult.
+	 * Other formats ignore the column description.
+	 */
+	public DataOutputStream openStreamFile(String streamName, String timeStamp, String streamExt,
+			String[] columns, String[] units, double sampleRate)
+	{
+		DataOutputStream dos = openStreamFile(streamName, timeStamp, streamExt);
+		if (dos instanceof ColumnarOutputStream)
+		{
+			((ColumnarOutputStream)dos).describe(columns, units, sampleRate);
+			if (format == DATA_FORMAT_COMPRESSED)
+				((ColumnarOutputStream)dos).quantize(rawMult);
+		}
+		return dos;
+	}
+	
 	public DataOutputStream openStatsFile(String streamName, String timeStamp, String streamExt)
 	{
 		String userID = getStringPref(GlobalApp.PREF_KEY_USERID);
@@ -138,16 +225,28 @@ implements LocationListener, SensorEventListener
 		boolean closed = false;
 		if (stream != null)
 		{
-	        try
+	        // Frames are written under the stream lock, so a stream swapped out
+	        // by restart() is never closed in the middle of a frame
+	        synchronized (stream)
 	        {
-	        	stream.flush();
-	        	stream.close();
-	        	closed = true;
+		        try
+		        {
+		        	stream.flush();
+		        	stream.close();
+		        	closed = true;
+		        }
+		        catch (IOException e)
+		        {
+		            e.printStackTrace();
+		        }
 	        }
-	        catch (IOException e)
+	        File file;
+	        synchronized (openFiles)
 	        {
-	            e.printStackTrace();
+	        	file = openFiles.remove(stream);
 	        }
+	        if (closed && file != null)
+	        	app.getManifest().record(file, ArtifactManifest.SEALED);
 		}
 		return closed;
 	}
@@ -163,6 +262,19 @@ implements LocationListener, SensorEventListener
 //	    return streamFile.delete();
 //	}
 
+	/**
+	 * Raw multipliers for a (diffSecs, value...) sensor stream: microsecond
+	 * times, and values in steps of the sensor's reported resolution.
+	 */
+	protected double[] sensorRawMult(Sensor sensor, int values)
+	{
+		double[] mult = new double[values + 1];
+		mult[0] = 1e6;
+		float resolution = (sensor != null) ? sensor.getResolution() : 0;
+		Arrays.fill(mult, 1, values + 1, (resolution > 0) ? 1.0/resolution : 1000.0);
+		return mult;
+	}
+	
 	public void allocateFrameFeatureBuffer(int features)
 	{
 		featureBuffer = new double[features];
@@ -187,6 +299,15 @@ implements LocationListener, SensorEventListener
 		}
 	}
 	
+	// Appends an extractor's features for the current frame
+	public boolean pushFrameFeatures(FrameFeatures extractor)
+	{
+		if (featureCount + extractor.featureCount() > featureSize)
+			return false;
+		featureCount += extractor.extract(featureBuffer, featureCount);
+		return true;
+	}
+	
 	public void clearFeatureFrame()
 	{
 		Arrays.fill(featureBuffer, 0);
@@ -197,24 +318,22 @@ implements LocationListener, SensorEventListener
 	{
 		if (stream != null)
 		{
-			try
+			synchronized (stream)
 			{
-				for (int i = 0; i < items.length; i ++)
+				try
 				{
 					// Text strings in CSV format
-					if (i < (items.length - 1))
-						stream.writeBytes(items[i] + ",");
-					else
-						stream.writeBytes(items[i]);
+					for (int i = 0; i < items.length; i ++)
+						writeText(stream, items[i], (i < (items.length - 1)) ? ',' : -1);
+					
+					// New line for CSV files
+					stream.writeByte(10);
+					stream.flush();
+				}
+		        catch (IOException e)
+				{
+					e.printStackTrace();
 				}
-				
-				// New line for CSV files
-				stream.writeByte(10);
-				stream.flush();
-			}
-	        catch (IOException e)
-			{
-				e.printStackTrace();
 			}
 		}
 		
@@ -222,15 +341,41 @@ implements LocationListener, SensorEventListener
 	
 	public void writeTextLine(String csv_string, DataOutputStream stream){
 		if(stream != null){
-			try{
-				stream.writeBytes(csv_string);
-				stream.writeByte(10);
-				stream.flush();
+			synchronized (stream)
+			{
+				try{
+					writeText(stream, csv_string, 10);
+					stream.flush();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
 			}
-			catch (IOException e)
+		}
+	}
+	
+	/**
+	 * Copies text as single bytes, like writeBytes(), through the shared
+	 * text buffer rather than a concatenated String, then the separator
+	 * byte if it is not negative.
+	 */
+	private void writeText(DataOutputStream stream, String text, int separator) throws IOException
+	{
+		synchronized (textBuffer)
+		{
+			int len = text.length();
+			int pos = 0;
+			while (pos < len)
 			{
-				e.printStackTrace();
+				int n = Math.min(len - pos, textBuffer.length);
+				for (int j = 0; j < n; j ++)
+					textBuffer[j] = (byte)text.charAt(pos + j);
+				stream.write(textBuffer, 0, n);
+				pos += n;
 			}
+			if (separator >= 0)
+				stream.write(separator);
 		}
 	}
 	
@@ -238,52 +383,148 @@ implements LocationListener, SensorEventListener
 	{
 		if (stream != null)
 		{
-			try
+			synchronized (stream)
 			{
-				for (int i = 0; i < features.length; i ++)
+				try
 				{
-					switch (outputFormat)
+					int last = features.length - 1;
+					for (int i = 0; i < features.length; i ++)
 					{
-					// Text strings in CSV format
-					case OUTPUT_FORMAT_TXT:
-						if (i < (features.length - 1))
-							stream.writeBytes(Double.toString(features[i]) + ",");
-						else
-							stream.writeBytes(Double.toString(features[i]));
-						break;
-						
-					// Raw 64-bit, double big-endian format
-					case OUTPUT_FORMAT_DOUBLE:
-						stream.writeDouble(features[i]);
-						break;
-						
-				    // Raw 32-bit, float big-endian format
-					case OUTPUT_FORMAT_FLOAT:
-						stream.writeFloat((float)features[i]);
-						break;
-					
-						// Compact 16-bit, big-endian with variable precision multiplier
-					case OUTPUT_FORMAT_SHORT:
-						stream.writeShort((short)Math.round(features[i]*featureMult[i]));
-						break;
+						writeFrameValue(stream, outputFormat, i, features[i], i == last);
 					}
+					endFrame(stream, outputFormat);
 				}
-				
-				// New line for CSV files
-				if (outputFormat == OUTPUT_FORMAT_TXT)
+		        catch (IOException e)
 				{
-					stream.writeByte(10);
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes a (time, value) sample without going through a double[] frame.
+	 */
+	public void writeRawFrame(DataOutputStream stream, int outputFormat, double t, float v)
+	{
+		if (stream != null)
+		{
+			synchronized (stream)
+			{
+				try
+				{
+					writeFrameValue(stream, outputFormat, 0, t, false);
+					writeFrameValue(stream, outputFormat, 1, v, true);
+					endFrame(stream, outputFormat);
+				}
+		        catch (IOException e)
+				{
+					e.printStackTrace();
 				}
-				
-				stream.flush();
 			}
-	        catch (IOException e)
+		}
+	}
+	
+	/**
+	 * Writes a tri-axial (time, x, y, z) sample straight into the stream
+	 * buffer, so per-event sensor callbacks create no garbage.
+	 */
+	public void writeRawFrame(DataOutputStream stream, int outputFormat, double t, float x, float y, float z)
+	{
+		if (stream != null)
+		{
+			synchronized (stream)
+			{
+				try
+				{
+					writeFrameValue(stream, outputFormat, 0, t, false);
+					writeFrameValue(stream, outputFormat, 1, x, false);
+					writeFrameValue(stream, outputFormat, 2, y, false);
+					writeFrameValue(stream, outputFormat, 3, z, true);
+					endFrame(stream, outputFormat);
+				}
+		        catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	// Sensor values are floats, so in CSV they get float rather than double digits
+	private void writeFrameValue(DataOutputStream stream, int outputFormat, int i, float value, boolean last)
+			throws IOException
+	{
+		if (outputFormat == OUTPUT_FORMAT_TXT)
+		{
+			synchronized (textBuffer)
+			{
+				int len = textFormat.format(value, textBuffer, 0);
+				if (!last)
+					textBuffer[len++] = ',';
+				stream.write(textBuffer, 0, len);
+			}
+		}
+		else
+		{
+			writeFrameValue(stream, outputFormat, i, (double)value, last);
+		}
+	}
+	
+	private void writeFrameValue(DataOutputStream stream, int outputFormat, int i, double value, boolean last)
+			throws IOException
+	{
+		switch (outputFormat)
+		{
+		// Text strings in CSV format
+		case OUTPUT_FORMAT_TXT:
+			synchronized (textBuffer)
 			{
-				e.printStackTrace();
+				int len = textFormat.format(value, textBuffer, 0);
+				if (!last)
+					textBuffer[len++] = ',';
+				stream.write(textBuffer, 0, len);
 			}
+			break;
+			
+		// Raw 64-bit, double big-endian format
+		case OUTPUT_FORMAT_DOUBLE:
+			stream.writeDouble(value);
+			break;
+			
+	    // Raw 32-bit, float big-endian format
+		case OUTPUT_FORMAT_FLOAT:
+			stream.writeFloat((float)value);
+			break;
+		
+			// Compact 16-bit, big-endian with variable precision multiplier
+		case OUTPUT_FORMAT_SHORT:
+			double mult = (featureMult != null && i < featureMult.length) ? featureMult[i] : 1.0;
+			stream.writeShort((short)Math.round(value*mult));
+			break;
+			
+		// Row of a self-describing columnar file
+		case OUTPUT_FORMAT_COLUMNAR:
+			((ColumnarOutputStream)stream).writeValue(value);
+			break;
 		}
 	}
 	
+	private void endFrame(DataOutputStream stream, int outputFormat) throws IOException
+	{
+		// New line for CSV files
+		if (outputFormat == OUTPUT_FORMAT_TXT)
+		{
+			stream.writeByte(10);
+		}
+		else if (outputFormat == OUTPUT_FORMAT_COLUMNAR)
+		{
+			((ColumnarOutputStream)stream).endRow();
+		}
+		
+		stream.flush();
+	}
+	
 //	public void openLogTextFile(String streamName, String streamPath)
 //    {
 //		String userID = getStringPref(GlobalApp.PREF_KEY_USERID);
@@ -301,18 +542,7 @@ implements LocationListener, SensorEventListener
     
     public void writeLogTextLine(String message)
     {
-        try
-        {
-        	Date now = new Date();
-        	String prettyDate = prettyDateString(now);
-			logTextStream.write(prettyDate + ": " + message);
-	        logTextStream.newLine();
-	        logTextStream.flush();
-		}
-        catch (IOException e)
-		{
-			e.printStackTrace();
-		}
+    	app.writeLogTextLine(logTextStream, message, false);
     }
 
     public String getStringPref(String key)
@@ -334,6 +564,163 @@ implements LocationListener, SensorEventListener
     }
     
     
+	protected int getIntStringPref(String key, int defaultValue)
+	{
+		try
+		{
+			return Integer.parseInt(getStringPref(key));
+		}
+		catch (NumberFormatException e)
+		{
+			return defaultValue;
+		}
+	}
+    
+	/**
+	 * Registers this writer for sensor events on its own looper thread, so
+	 * callbacks never queue behind the recorder's start/stop/restart work.
+	 * On API 19+ the configured max report latency lets the sensor hub
+	 * batch events in its FIFO while the application processor sleeps.
+	 */
+	protected void registerSensorListener(SensorManager sensorManager, Sensor sensor, int rate, int threadPriority)
+	{
+		sensorThread = new HandlerThread(toString() + " Sensor Thread", threadPriority);
+		sensorThread.start();
+		Handler handler = new Handler(sensorThread.getLooper());
+		sensorHandler = handler;
+		
+		int maxReportLatencyUs = getIntStringPref(app.getString(R.string.sensorMaxReportLatency), 0);
+		if (Build.VERSION.SDK_INT >= 19 && maxReportLatencyUs > 0)
+		{
+			batchingMode = true;
+			batchLatencySecs = maxReportLatencyUs/1000000.0d;
+			sensorManager.registerListener(this, sensor, rate, maxReportLatencyUs, handler);
+		}
+		else
+		{
+			sensorManager.registerListener(this, sensor, rate, handler);
+		}
+	}
+	
+	/**
+	 * Fastest rate in Hz the sensor can deliver, from Sensor.getMinDelay().
+	 * Never less than defaultRate, which is also used for sensors that don't
+	 * report a minimum delay.
+	 */
+	protected double sensorMaxRate(Sensor sensor, double defaultRate)
+	{
+		int minDelayUs = (sensor != null) ? sensor.getMinDelay() : 0;
+		if (minDelayUs <= 0)
+			return defaultRate;
+		return Math.max(1000000.0d/minDelayUs, defaultRate);
+	}
+	
+	/**
+	 * Frame buffer length in samples for frames of frameDuration seconds at
+	 * maxRate Hz, with 25% headroom for rate jitter so frames are closed by
+	 * time, not by size.
+	 */
+	protected static int frameBufferSize(double maxRate, double frameDuration)
+	{
+		int frameLength = (int)Math.ceil(maxRate*frameDuration);
+		return (int)Math.ceil(frameLength*1.25) + 1;
+	}
+	
+	/**
+	 * Maps the sensor clock onto wall-clock time, called from start/restart
+	 * so each stream file has a single anchor.
+	 */
+	protected void anchorEventTime(Date time)
+	{
+		if (Build.VERSION.SDK_INT >= 17)
+			eventTimeOffsetSecs = ((double)time.getTime())/1000.0d
+					- ((double)SystemClock.elapsedRealtimeNanos())/1000000000.0d;
+		else
+			eventTimeOffsetSecs = Double.NaN;
+		eventTimeChecked = false;
+	}
+	
+	/**
+	 * Time of a sensor sample in seconds since the epoch. In batching mode
+	 * this is the hardware event timestamp, so samples delivered together in
+	 * one batch keep their true spacing.
+	 */
+	protected double sensorEventSecs(SensorEvent event)
+	{
+		if (!batchingMode)
+			return ((double)System.currentTimeMillis())/1000.0d;
+		
+		double eventSecs = ((double)event.timestamp)/1000000000.0d;
+		if (!eventTimeChecked)
+		{
+			// Not every device stamps events with elapsedRealtimeNanos, fall back
+			// to anchoring on the first event if the mapping is clearly off
+			double nowSecs = ((double)System.currentTimeMillis())/1000.0d;
+			if (Double.isNaN(eventTimeOffsetSecs)
+					|| Math.abs(eventSecs + eventTimeOffsetSecs - nowSecs) > batchLatencySecs + 1.0)
+			{
+				eventTimeOffsetSecs = nowSecs - eventSecs;
+			}
+			eventTimeChecked = true;
+		}
+		return eventSecs + eventTimeOffsetSecs;
+	}
+	
+	/**
+	 * Runs task on the sensor callback thread and waits for it to finish,
+	 * so it never races onSensorChanged over the stream fields. Runs it
+	 * directly if the writer has no sensor thread, or it has quit.
+	 */
+	protected void runOnSensorThread(final Runnable task)
+	{
+		Handler handler = sensorHandler;
+		if (handler == null || Looper.myLooper() == handler.getLooper())
+		{
+			task.run();
+			return;
+		}
+		final CountDownLatch done = new CountDownLatch(1);
+		boolean posted = handler.post(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					task.run();
+				}
+				finally
+				{
+					done.countDown();
+				}
+			}
+		});
+		if (!posted)
+		{
+			task.run();
+			return;
+		}
+		try
+		{
+			if (!done.await(SENSOR_TASK_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+				writeLogTextLine("Timed out waiting for sensor thread task");
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	protected void unregisterSensorListener(SensorManager sensorManager)
+	{
+		sensorManager.unregisterListener(this);
+		sensorHandler = null;
+		if (sensorThread != null)
+		{
+			sensorThread.quit();
+			sensorThread = null;
+		}
+	}
+    
 	public String prettyDateString(Date time)
 	{
 		return DateFormat.format("yyyy/MM/dd kk:mm:ss", time).toString();
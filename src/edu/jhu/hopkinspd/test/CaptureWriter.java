@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.jhu.hopkinspd.GlobalApp;
+import edu.jhu.hopkinspd.math.TriaxialBuffer;
+import edu.jhu.hopkinspd.stream.AsciiNumberFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+
+/**
+ * Background writer for one test capture file. The capture fills a front
+ * buffer in its sensor or touch callback and hands it over with swap(),
+ * getting the spare buffer back; formatting and file I/O happen on this
+ * writer's own thread. If both buffers are still in flight a new one is
+ * allocated, so the callback never waits on the card.
+ *
+ * Each writer has its own number formatter and line buffer, so any number
+ * of captures can record at the same time without sharing state.
+ */
+public abstract class CaptureWriter<B> implements Handler.Callback
+{
+	private static final int MSG_OPEN = 0;
+	private static final int MSG_WRITE = 1;
+	private static final int MSG_CLOSE = 2;
+
+	static final long CLOSE_TIMEOUT_MS = 5000;
+
+	protected final GlobalApp app;
+	private final HandlerThread thread;
+	private final Handler handler;
+	private final AtomicReference<B> spare = new AtomicReference<B>();
+	private DataOutputStream stream = null;
+
+	// Only used on the writer thread
+	protected final AsciiNumberFormat textFormat = new AsciiNumberFormat(AsciiNumberFormat.SHORTEST);
+	protected byte[] textLine = new byte[4*(AsciiNumberFormat.MAX_LENGTH + 1)];
+
+	public CaptureWriter(GlobalApp app, String name)
+	{
+		this.app = app;
+		thread = new HandlerThread(name + " writer", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		handler = new Handler(thread.getLooper(), this);
+	}
+
+	protected abstract B newBuffer();
+
+	protected abstract void writeFrames(DataOutputStream stream, B buffer) throws IOException;
+
+	protected abstract void clear(B buffer);
+
+	// Runs on the writer thread, subclasses may wrap the file stream
+	protected DataOutputStream openStream(String filename)
+	{
+		return app.openTestStreamFile(filename);
+	}
+
+	public void open(String filename)
+	{
+		handler.obtainMessage(MSG_OPEN, filename).sendToTarget();
+	}
+
+	/**
+	 * Queues a full buffer for writing and returns an empty one to fill.
+	 */
+	public B swap(B full)
+	{
+		handler.obtainMessage(MSG_WRITE, full).sendToTarget();
+		B next = spare.getAndSet(null);
+		return (next != null) ? next : newBuffer();
+	}
+
+	/**
+	 * Queues the remaining frames, if any, then closes the file and waits
+	 * until it is closed, so the test's files are complete once the capture
+	 * has stopped. Returns the buffer to fill on the next recording.
+	 */
+	public B close(B last, boolean hasFrames)
+	{
+		if (hasFrames)
+			last = swap(last);
+		CountDownLatch closed = new CountDownLatch(1);
+		if (handler.sendMessage(handler.obtainMessage(MSG_CLOSE, closed)))
+		{
+			try
+			{
+				closed.await(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Stops the writer thread once everything queued so far is written.
+	 */
+	public void quit()
+	{
+		handler.post(new Runnable()
+		{
+			public void run()
+			{
+				thread.quit();
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	public boolean handleMessage(Message msg)
+	{
+		switch (msg.what)
+		{
+		case MSG_OPEN:
+			stream = openStream((String)msg.obj);
+			break;
+		case MSG_WRITE:
+			B buffer = (B)msg.obj;
+			if (stream != null)
+			{
+				try
+				{
+					writeFrames(stream, buffer);
+					stream.flush();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+			clear(buffer);
+			spare.compareAndSet(null, buffer);
+			break;
+		case MSG_CLOSE:
+			app.closeTestStreamFile(stream);
+			stream = null;
+			((CountDownLatch)msg.obj).countDown();
+			break;
+		}
+		return true;
+	}
+
+	/**
+	 * Writer for tri-axial (time, x, y, z) sensor captures.
+	 */
+	public static class Triaxial extends CaptureWriter<TriaxialBuffer>
+	{
+		private final int length, outputFormat;
+
+		public Triaxial(GlobalApp app, String name, int length, int outputFormat)
+		{
+			super(app, name);
+			this.length = length;
+			this.outputFormat = outputFormat;
+		}
+
+		protected TriaxialBuffer newBuffer()
+		{
+			return new TriaxialBuffer(length);
+		}
+
+		protected void writeFrames(DataOutputStream stream, TriaxialBuffer buffer) throws IOException
+		{
+			int n = buffer.size();
+			for (int j = 0, p = buffer.start(); j < n; j ++)
+			{
+				switch (outputFormat)
+				{
+				// Text strings in CSV format
+				case GlobalApp.OUTPUT_FORMAT_TXT:
+					int len = textFormat.format(buffer.t[p], textLine, 0);
+					textLine[len++] = ',';
+					len = textFormat.format(buffer.x[p], textLine, len);
+					textLine[len++] = ',';
+					len = textFormat.format(buffer.y[p], textLine, len);
+					textLine[len++] = ',';
+					len = textFormat.format(buffer.z[p], textLine, len);
+					textLine[len++] = 10;
+					stream.write(textLine, 0, len);
+					break;
+
+					// Raw 64-bit, double big-endian format
+				case GlobalApp.OUTPUT_FORMAT_DOUBLE:
+					stream.writeDouble(buffer.t[p]);
+					stream.writeDouble(buffer.x[p]);
+					stream.writeDouble(buffer.y[p]);
+					stream.writeDouble(buffer.z[p]);
+					break;
+
+					// Raw 32-bit, float big-endian format
+				case GlobalApp.OUTPUT_FORMAT_FLOAT:
+					stream.writeFloat((float)buffer.t[p]);
+					stream.writeFloat(buffer.x[p]);
+					stream.writeFloat(buffer.y[p]);
+					stream.writeFloat(buffer.z[p]);
+					break;
+				}
+				if (++p == buffer.capacity)
+					p = 0;
+			}
+		}
+
+		protected void clear(TriaxialBuffer buffer)
+		{
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Writer for row-oriented captures such as touch events.
+	 */
+	public static class Rows extends CaptureWriter<RowBuffer>
+	{
+		private final int length, columns, outputFormat;
+
+		public Rows(GlobalApp app, String name, int length, int columns, int outputFormat)
+		{
+			super(app, name);
+			this.length = length;
+			this.columns = columns;
+			this.outputFormat = outputFormat;
+			textLine = new byte[columns*(AsciiNumberFormat.MAX_LENGTH + 1)];
+		}
+
+		protected RowBuffer newBuffer()
+		{
+			return new RowBuffer(length, columns);
+		}
+
+		protected void writeFrames(DataOutputStream stream, RowBuffer rows) throws IOException
+		{
+			int n = rows.size()*columns;
+			for (int j = 0; j < n; j += columns)
+			{
+				switch (outputFormat)
+				{
+				// Text strings in CSV format
+				case GlobalApp.OUTPUT_FORMAT_TXT:
+					int len = 0;
+					for (int i = 0; i < columns; i ++)
+					{
+						if (i > 0)
+							textLine[len++] = ',';
+						len = textFormat.format(rows.data[j + i], textLine, len);
+					}
+					textLine[len++] = 10;
+					stream.write(textLine, 0, len);
+					break;
+
+					// Raw 64-bit, double big-endian format
+				case GlobalApp.OUTPUT_FORMAT_DOUBLE:
+					for (int i = 0; i < columns; i ++)
+						stream.writeDouble(rows.data[j + i]);
+					break;
+
+					// Raw 32-bit, float big-endian format
+				case GlobalApp.OUTPUT_FORMAT_FLOAT:
+					for (int i = 0; i < columns; i ++)
+						stream.writeFloat((float)rows.data[j + i]);
+					break;
+				}
+			}
+		}
+
+		protected void clear(RowBuffer buffer)
+		{
+			buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import edu.jhu.hopkinspd.GlobalApp;
+import edu.jhu.hopkinspd.stream.ColumnarOutputStream;
+import edu.jhu.hopkinspd.test.conf.TestConfig;
+import android.content.Context;
+import android.hardware.*;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Records several motion sensors into one file per test. All sensors are
+ * delivered on one high-priority thread and every sample is stamped from
+ * SensorEvent.timestamp, the clock the sensors share, relative to the first
+ * sample of the recording. Rows are interleaved in arrival order as
+ * (sensor type, t, x, y, z, w) in a columnar file; w is only set for the
+ * rotation vector.
+ */
+public class MultiSensorCapture implements SensorEventListener
+{
+	public static final String OUTPUT_EXT = GlobalApp.STREAM_EXTENSION_BIN_COLUMNAR;
+
+	private static final String CAPTURE_FILETYPE = "sensors";
+	private static final String TAG = GlobalApp.TAG + "|" + CAPTURE_FILETYPE;
+
+	private static final int SENSOR_RATE = SensorManager.SENSOR_DELAY_FASTEST;
+
+	public static final int CAPTURE_BUFFER_LENGTH = 256;
+	public static final int CAPTURE_BUFFER_ENTRIES = 6;
+
+	// Longest plausible delivery delay of a sensor event
+	private static final long MAX_EVENT_DELAY_NANOS = 10000000000L;
+
+	private static final String[] COLUMNS = {"sensor", "t", "x", "y", "z", "w"};
+	private static final String[] UNITS = {"type", "s", "", "", "", ""};
+
+	private SensorManager sensorManager = null;
+	private ArrayList<Sensor> sensors = new ArrayList<Sensor>();
+	public volatile boolean isRecording = false;
+	private TestConfig testConf;
+	private GlobalApp app;
+
+	// Only touched on the sensor thread
+	private HandlerThread sensorThread = null;
+	private Handler sensorHandler = null;
+	private RowBuffer buffer = null;
+	private long baseNanos = -1;
+	private ColumnarWriter writer = null;
+
+	public MultiSensorCapture(GlobalApp app, TestConfig testConf, int[] sensorTypes)
+	{
+		this.app = app;
+		this.testConf = testConf;
+		sensorManager = (SensorManager)app.getSystemService(Context.SENSOR_SERVICE);
+
+		sensorThread = new HandlerThread(CAPTURE_FILETYPE, Process.THREAD_PRIORITY_MORE_FAVORABLE);
+		sensorThread.start();
+		sensorHandler = new Handler(sensorThread.getLooper());
+
+		writer = new ColumnarWriter(app);
+		buffer = new RowBuffer(CAPTURE_BUFFER_LENGTH, CAPTURE_BUFFER_ENTRIES);
+
+		for (int type : sensorTypes)
+		{
+			Sensor sensor = sensorManager.getDefaultSensor(type);
+			if (sensor != null && sensorManager.registerListener(this, sensor, SENSOR_RATE, sensorHandler))
+				sensors.add(sensor);
+			else
+				Log.w(TAG, "Sensor type " + type + " not available");
+		}
+	}
+
+	public void destroy()
+	{
+		if (sensorManager != null)
+			sensorManager.unregisterListener(this);
+		sensorManager = null;
+		sensors.clear();
+		// Quit behind a pending stopRecording(), so the last rows still get written
+		sensorHandler.post(new Runnable()
+		{
+			public void run()
+			{
+				writer.quit();
+				sensorThread.quit();
+			}
+		});
+	}
+
+	public void startRecording(String phone_position)
+	{
+		Date time = new Date();
+		final String filename = app.getTestDataFilename(time, testConf.test_name,
+				CAPTURE_FILETYPE, OUTPUT_EXT);
+		sensorHandler.post(new Runnable()
+		{
+			public void run()
+			{
+				writer.open(filename);
+				buffer.clear();
+				baseNanos = -1;
+				isRecording = true;
+			}
+		});
+		if (phone_position != null)
+		{
+			String phonePosFileName = app.getTestDataFilename(time,
+					testConf.test_name, "phone", "txt");
+			DataOutputStream phonePosFile = app.openTestStreamFile(phonePosFileName);
+			try
+			{
+				phonePosFile.writeChars(phone_position);
+			}
+			catch (IOException e)
+			{
+				Log.e(TAG, "phonePosFile WriteException");
+			}
+			app.closeTestStreamFile(phonePosFile);
+		}
+	}
+
+	public void stopRecording()
+	{
+		// Runs after any sensor events already queued on the sensor thread,
+		// and returns once the file has been closed
+		final CountDownLatch stopped = new CountDownLatch(1);
+		boolean posted = sensorHandler.post(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					if (isRecording)
+					{
+						isRecording = false;
+						buffer = writer.close(buffer, buffer.size() > 0);
+					}
+				}
+				finally
+				{
+					stopped.countDown();
+				}
+			}
+		});
+		if (!posted)
+			return;
+		try
+		{
+			if (!stopped.await(CaptureWriter.CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+				Log.w(TAG, "Timed out waiting for the sensor thread to stop");
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void onSensorChanged(SensorEvent event)
+	{
+		if (isRecording)
+		{
+			if (baseNanos < 0)
+			{
+				baseNanos = event.timestamp;
+				writer.startMillis = eventMillis(event);
+			}
+
+			float[] v = event.values;
+			int r = buffer.append();
+			buffer.data[r] = event.sensor.getType();
+			buffer.data[r + 1] = (event.timestamp - baseNanos)/1000000000.0d;
+			buffer.data[r + 2] = v[0];
+			buffer.data[r + 3] = (v.length > 1) ? v[1] : Double.NaN;
+			buffer.data[r + 4] = (v.length > 2) ? v[2] : Double.NaN;
+			buffer.data[r + 5] = (v.length > 3 && event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR) ? v[3] : Double.NaN;
+
+			if (buffer.isFull())
+			{
+				buffer = writer.swap(buffer);
+			}
+		}
+	}
+
+	public void onAccuracyChanged(Sensor arg0, int arg1)
+	{
+	}
+
+	/**
+	 * Wall-clock time of the event itself rather than of its delivery.
+	 * Not every device stamps events with elapsedRealtimeNanos, so the
+	 * delivery time is used if the mapping is clearly off.
+	 */
+	private static long eventMillis(SensorEvent event)
+	{
+		long nowMillis = System.currentTimeMillis();
+		if (Build.VERSION.SDK_INT >= 17)
+		{
+			long delayNanos = SystemClock.elapsedRealtimeNanos() - event.timestamp;
+			if (delayNanos >= 0 && delayNanos < MAX_EVENT_DELAY_NANOS)
+				return nowMillis - delayNanos/1000000L;
+		}
+		return nowMillis;
+	}
+
+	private static class ColumnarWriter extends CaptureWriter<RowBuffer>
+	{
+		// Wall-clock time of the sample at t = 0, set before its row is queued
+		volatile long startMillis = 0;
+		// Only used on the writer thread
+		private boolean started = false;
+
+		public ColumnarWriter(GlobalApp app)
+		{
+			super(app, CAPTURE_FILETYPE);
+		}
+
+		@Override
+		protected DataOutputStream openStream(String filename)
+		{
+			DataOutputStream file = app.openTestStreamFile(filename);
+			if (file == null)
+				return null;
+			ColumnarOutputStream stream = new ColumnarOutputStream(file, CAPTURE_FILETYPE,
+					app.getStringPhoneID(), app.getStringPref(GlobalApp.PREF_KEY_USERID),
+					ColumnarOutputStream.TYPE_FLOAT);
+			stream.describe(COLUMNS, UNITS, Double.NaN);
+			started = false;
+			return stream;
+		}
+
+		protected RowBuffer newBuffer()
+		{
+			return new RowBuffer(CAPTURE_BUFFER_LENGTH, CAPTURE_BUFFER_ENTRIES);
+		}
+
+		protected void writeFrames(DataOutputStream stream, RowBuffer rows) throws IOException
+		{
+			ColumnarOutputStream columnar = (ColumnarOutputStream)stream;
+			if (!started)
+			{
+				// Header anchor, written out with the first row
+				columnar.setStartTime(startMillis);
+				started = true;
+			}
+			int n = rows.size()*rows.columns;
+			for (int j = 0; j < n; j += rows.columns)
+			{
+				for (int i = 0; i < rows.columns; i ++)
+					columnar.writeValue(rows.data[j + i]);
+				columnar.endRow();
+			}
+		}
+
+		protected void clear(RowBuffer buffer)
+		{
+			buffer.clear();
+		}
+	}
+}
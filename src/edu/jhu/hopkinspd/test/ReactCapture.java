@@ -30,7 +30,6 @@
  */
 package edu.jhu.hopkinspd.test;
 
-import java.io.DataOutputStream;
 import java.util.Date;
 
 import edu.jhu.hopkinspd.GlobalApp;
@@ -49,23 +48,25 @@ public class ReactCapture
 	public static final int CAPTURE_BUFFER_ENTRIES = 5;
 
 	public boolean isRecording = false;
-	private int bufferItems = 0;
+	private RowBuffer buffer = null;
+	private CaptureWriter<RowBuffer> writer = null;
 //	private int testNumber = 0;
 	private TestConfig testConf;
 	private GlobalApp app;
-	private DataOutputStream testStreamFile = null;
 	private CountDownTimer taskTimer = null;
 	
 	public ReactCapture(GlobalApp app, TestConfig testConf)
     {
 		this.app = app;
-		bufferItems = 0;
 		this.testConf = testConf;
-		app.allocateStreamBuffer(CAPTURE_BUFFER_LENGTH, CAPTURE_BUFFER_ENTRIES);
+		writer = new CaptureWriter.Rows(app, CAPTURE_FILETYPE, CAPTURE_BUFFER_LENGTH,
+				CAPTURE_BUFFER_ENTRIES, OUTPUT_FORMAT);
+		buffer = new RowBuffer(CAPTURE_BUFFER_LENGTH, CAPTURE_BUFFER_ENTRIES);
     }
     
     public void destroy()
     {
+    	writer.quit();
     }
 
     public void startRecording()
@@ -73,8 +74,8 @@ public class ReactCapture
 		Date time = new Date();
 		String filename = app.getTestDataFilename(time, testConf.test_name, 
 				CAPTURE_FILETYPE, OUTPUT_EXT);
-		testStreamFile = app.openTestStreamFile(filename);
-    	bufferItems = 0;
+		writer.open(filename);
+    	buffer.clear();
     	isRecording = true;
     }
     
@@ -83,11 +84,7 @@ public class ReactCapture
     	isRecording = false;
 
     	// Write out remainder of buffer if anything left
-    	if (bufferItems > 0)
-    	{
-        	app.writeTestStreamFrames(testStreamFile, bufferItems, OUTPUT_FORMAT);
-    	}
-    	app.closeTestStreamFile(testStreamFile);
+    	buffer = writer.close(buffer, buffer.size() > 0);
     }
 
 	public boolean handleTouchEvent(MotionEvent me, boolean buttonStatus)
@@ -112,17 +109,16 @@ public class ReactCapture
 				Y = me.getY();
 //				time = (double)(me.getEventTime())/1000.0d;
 			}
-			GlobalApp.streamBuffer[bufferItems][0] = time;
-			GlobalApp.streamBuffer[bufferItems][1] = X;
-			GlobalApp.streamBuffer[bufferItems][2] = Y;
-			GlobalApp.streamBuffer[bufferItems][3] = buttonVisible;
-			GlobalApp.streamBuffer[bufferItems][4] = buttonPressed;
+			int r = buffer.append();
+			buffer.data[r] = time;
+			buffer.data[r + 1] = X;
+			buffer.data[r + 2] = Y;
+			buffer.data[r + 3] = buttonVisible;
+			buffer.data[r + 4] = buttonPressed;
 			
-			bufferItems ++;
-			if (bufferItems == CAPTURE_BUFFER_LENGTH)
+			if (buffer.isFull())
 			{
-				app.writeTestStreamFrames(testStreamFile, bufferItems, OUTPUT_FORMAT);
-				bufferItems = 0;
+				buffer = writer.swap(buffer);
 			}
 		}
 		return true;
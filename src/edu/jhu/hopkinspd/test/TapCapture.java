@@ -30,7 +30,6 @@
  */
 package edu.jhu.hopkinspd.test;
 
-import java.io.DataOutputStream;
 import java.util.Date;
 
 import edu.jhu.hopkinspd.GlobalApp;
@@ -48,22 +47,24 @@ public class TapCapture
 	public static final int CAPTURE_BUFFER_ENTRIES = 3;
 
 	public boolean isRecording = false;
-	private int bufferItems = 0;
+	private RowBuffer buffer = null;
+	private CaptureWriter<RowBuffer> writer = null;
 //	private int testNumber = 0;
 	private GlobalApp app;
-	private DataOutputStream testStreamFile = null;
 	private TestConfig testConf;
 	
 	public TapCapture(GlobalApp app, TestConfig testConf)
     {
 		this.app = app;
-		bufferItems = 0;
 		this.testConf = testConf;
-		app.allocateStreamBuffer(CAPTURE_BUFFER_LENGTH, CAPTURE_BUFFER_ENTRIES);
+		writer = new CaptureWriter.Rows(app, CAPTURE_FILETYPE, CAPTURE_BUFFER_LENGTH,
+				CAPTURE_BUFFER_ENTRIES, OUTPUT_FORMAT);
+		buffer = new RowBuffer(CAPTURE_BUFFER_LENGTH, CAPTURE_BUFFER_ENTRIES);
     }
     
     public void destroy()
     {
+    	writer.quit();
     }
 	    
     public void startRecording()
@@ -71,8 +72,8 @@ public class TapCapture
 		Date time = new Date();
 		String filename = app.getTestDataFilename(time, testConf.test_name, 
 				CAPTURE_FILETYPE, OUTPUT_EXT);
-		testStreamFile = app.openTestStreamFile(filename);
-    	bufferItems = 0;
+		writer.open(filename);
+    	buffer.clear();
     	isRecording = true;
     }
     
@@ -81,28 +82,23 @@ public class TapCapture
     	isRecording = false;
 
     	// Write out remainder of buffer if anything left
-    	if (bufferItems > 0)
-    	{
-        	app.writeTestStreamFrames(testStreamFile, bufferItems, OUTPUT_FORMAT);
-    	}
-    	app.closeTestStreamFile(testStreamFile);
+    	buffer = writer.close(buffer, buffer.size() > 0);
     }
 
 	public boolean handleTouchEvent(MotionEvent me)
 	{
 		if (isRecording)
 		{
-			GlobalApp.streamBuffer[bufferItems][0] = (double)(me.getEventTime())/1000.0d;
-			GlobalApp.streamBuffer[bufferItems][1] = me.getX();
-			GlobalApp.streamBuffer[bufferItems][2] = me.getY();
-//			GlobalApp.streamBuffer[bufferItems][3] = me.getSize();
-//			GlobalApp.streamBuffer[bufferItems][4] = me.getPressure();
+			int r = buffer.append();
+			buffer.data[r] = (double)(me.getEventTime())/1000.0d;
+			buffer.data[r + 1] = me.getX();
+			buffer.data[r + 2] = me.getY();
+//			buffer.data[r + 3] = me.getSize();
+//			buffer.data[r + 4] = me.getPressure();
 			
-			bufferItems ++;
-			if (bufferItems == CAPTURE_BUFFER_LENGTH)
+			if (buffer.isFull())
 			{
-				app.writeTestStreamFrames(testStreamFile, bufferItems, OUTPUT_FORMAT);
-				bufferItems = 0;
+				buffer = writer.swap(buffer);
 			}
 		}
 		return true;
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.test;
+
+import java.util.Date;
+
+import edu.jhu.hopkinspd.GlobalApp;
+import edu.jhu.hopkinspd.math.TriaxialBuffer;
+import edu.jhu.hopkinspd.test.conf.TestConfig;
+import android.content.Context;
+import android.hardware.*;
+
+/**
+ * Records one three-axis sensor into its own text file per test. The
+ * sensor type and the file type name are given by the subclass.
+ */
+public class TriaxialCapture implements SensorEventListener
+{
+	public static final int OUTPUT_FORMAT = GlobalApp.OUTPUT_FORMAT_TXT;
+	public static final String OUTPUT_EXT = GlobalApp.TXT_DATA_EXTENSION;
+
+	private static final int SENSOR_RATE = SensorManager.SENSOR_DELAY_FASTEST;
+
+	public static final int CAPTURE_BUFFER_LENGTH = 100;
+
+	private final String captureFiletype;
+	private SensorManager sensorManager = null;
+	private Sensor sensor = null;
+	public boolean isRecording = false;
+	protected GlobalApp app;
+	private boolean sensorAvailable = true;
+	private TriaxialBuffer buffer = null;
+	private CaptureWriter<TriaxialBuffer> writer = null;
+	protected TestConfig testConf;
+
+	public TriaxialCapture(GlobalApp app, TestConfig testConf, int sensorType, String captureFiletype)
+	{
+		this.app = app;
+		this.captureFiletype = captureFiletype;
+		sensorManager = (SensorManager)app.getSystemService(Context.SENSOR_SERVICE);
+		sensor = sensorManager.getDefaultSensor(sensorType);
+		sensorAvailable = sensorManager.registerListener(this, sensor, SENSOR_RATE);
+
+		writer = new CaptureWriter.Triaxial(app, captureFiletype, CAPTURE_BUFFER_LENGTH, OUTPUT_FORMAT);
+		buffer = new TriaxialBuffer(CAPTURE_BUFFER_LENGTH);
+
+		this.testConf = testConf;
+	}
+
+	public void destroy()
+	{
+		if (sensorAvailable && sensorManager != null)
+			sensorManager.unregisterListener(this);
+		sensorManager = null;
+		sensor = null;
+		writer.quit();
+	}
+
+	public void startRecording()
+	{
+		startRecording(new Date());
+	}
+
+	// Opens the capture file named for time, so subclasses can name
+	// their own files from the same time
+	protected void startRecording(Date time)
+	{
+		if (sensorAvailable)
+		{
+			String filename = app.getTestDataFilename(time, testConf.test_name,
+					captureFiletype, OUTPUT_EXT);
+			writer.open(filename);
+			buffer.clear();
+			isRecording = true;
+		}
+	}
+
+	public void stopRecording()
+	{
+		if (sensorAvailable)
+		{
+			isRecording = false;
+
+			// Write out remainder of buffer if anything left
+			buffer = writer.close(buffer, buffer.size() > 0);
+		}
+	}
+
+	public void onSensorChanged(SensorEvent event)
+	{
+		if (isRecording)
+		{
+			// the time unit is second
+			buffer.push(((double)event.timestamp)/1000000000.0d,
+					event.values[0], event.values[1], event.values[2]);
+
+			if (buffer.isFull())
+			{
+				buffer = writer.swap(buffer);
+			}
+		}
+	}
+
+	public void onAccuracyChanged(Sensor arg0, int arg1)
+	{
+	}
+}
@@ -46,8 +46,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 import edu.jhu.hopkinspd.GlobalApp;
 import edu.jhu.hopkinspd.R;
-import edu.jhu.hopkinspd.test.AccelCapture;
-import edu.jhu.hopkinspd.test.GyroCapture;
+import edu.jhu.hopkinspd.test.MultiSensorCapture;
 import edu.jhu.hopkinspd.test.TestActivity;
 import edu.jhu.hopkinspd.test.TestPrepActivity;
 
@@ -83,8 +82,7 @@ public class GaitTestConfig extends TestConfig{
     }
 	
 	
-	private AccelCapture accelObj = null;
-	private GyroCapture gyroObj = null;
+	private MultiSensorCapture captureObj = null;
 	
 	@Override
 	public void runTest(TestActivity activity, BufferedWriter logWriter) {
@@ -92,35 +90,25 @@ public class GaitTestConfig extends TestConfig{
 		// save phone position
 		String phone_position = app.getStringPref(phonePositionPref);
 		
-		
-		accelObj = new AccelCapture(app, this);
-		accelObj.startRecording(phone_position);
+		// One time-aligned file for all motion sensors
 		Log.d(TAG, "gyro_on" + gyro_on);
-		if(gyro_on){
-			gyroObj = new GyroCapture(app, this);
-			gyroObj.startRecording();
-		}
+		captureObj = new MultiSensorCapture(app, this, motionSensorTypes(true));
+		captureObj.startRecording(phone_position);
 	}
 	@Override
 	public void completeTest() {
-		if(accelObj != null){
-			accelObj.stopRecording();
-			accelObj.destroy();	
-		}
-		if(gyro_on && gyroObj != null){
-			gyroObj.stopRecording();
-			gyroObj.destroy();
+		if(captureObj != null){
+			captureObj.stopRecording();
+			captureObj.destroy();
+			captureObj = null;
 		}
 	}
 	@Override
 	public void cancelTest() {
-		if(accelObj != null){
-			accelObj.stopRecording();
-			accelObj.destroy();	
-		}
-		if(gyro_on && gyroObj != null){
-			gyroObj.stopRecording();
-			gyroObj.destroy();
+		if(captureObj != null){
+			captureObj.stopRecording();
+			captureObj.destroy();
+			captureObj = null;
 		}
 	}
 	@Override
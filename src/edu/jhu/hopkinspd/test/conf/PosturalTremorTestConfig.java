@@ -34,8 +34,7 @@ import java.io.BufferedWriter;
 
 import edu.jhu.hopkinspd.GlobalApp;
 import edu.jhu.hopkinspd.R;
-import edu.jhu.hopkinspd.test.AccelCapture;
-import edu.jhu.hopkinspd.test.GyroCapture;
+import edu.jhu.hopkinspd.test.MultiSensorCapture;
 import edu.jhu.hopkinspd.test.TestActivity;
 
 public class PosturalTremorTestConfig extends TestConfig{
@@ -71,40 +70,29 @@ public class PosturalTremorTestConfig extends TestConfig{
         help_link = "https://youtu.be/6QjjBa1HFVk";
 	}
 	
-    private AccelCapture accelObj = null;
-	private GyroCapture gyroObj = null;
+	private MultiSensorCapture captureObj = null;
 	
 	@Override
 	public void runTest(TestActivity activity, BufferedWriter logWriter) {
 		GlobalApp app = GlobalApp.getApp();
-		accelObj = new AccelCapture(app, this);
-		accelObj.startRecording(null);
-		
-		if(gyro_on){
-			gyroObj = new GyroCapture(app, this);
-			gyroObj.startRecording();
-		}
+		// One time-aligned file for all motion sensors
+		captureObj = new MultiSensorCapture(app, this, motionSensorTypes(false));
+		captureObj.startRecording(null);
 	}
 	@Override
 	public void completeTest() {
-		if(accelObj != null){
-			accelObj.stopRecording();
-			accelObj.destroy();	
-		}
-		if(gyro_on && gyroObj != null){
-			gyroObj.stopRecording();
-			gyroObj.destroy();
+		if(captureObj != null){
+			captureObj.stopRecording();
+			captureObj.destroy();
+			captureObj = null;
 		}
 	}
 	@Override
 	public void cancelTest() {
-		if(accelObj != null){
-			accelObj.stopRecording();
-			accelObj.destroy();	
-		}
-		if(gyro_on && gyroObj != null){
-			gyroObj.stopRecording();
-			gyroObj.destroy();
+		if(captureObj != null){
+			captureObj.stopRecording();
+			captureObj.destroy();
+			captureObj = null;
 		}
 	}
 
@@ -34,6 +34,7 @@ import java.io.BufferedWriter;
 import java.util.ArrayList;
 
 
+import android.hardware.Sensor;
 import android.view.MotionEvent;
 import edu.jhu.hopkinspd.GlobalApp;
 import edu.jhu.hopkinspd.R;
@@ -89,6 +90,27 @@ public abstract class TestConfig {
 	
 	private static ArrayList<TestConfig> enabled_tests = null;
 	public static boolean gyro_on = false; 
+	public static boolean compass_on = false;
+	
+	/**
+	 * Sensor types for a MultiSensorCapture of the phone's motion: the
+	 * accelerometer, the gyroscope and compass when enabled, and optionally
+	 * the rotation vector.
+	 */
+	protected static int[] motionSensorTypes(boolean rotationVector){
+		ArrayList<Integer> types = new ArrayList<Integer>();
+		types.add(Sensor.TYPE_ACCELEROMETER);
+		if(gyro_on)
+			types.add(Sensor.TYPE_GYROSCOPE);
+		if(compass_on)
+			types.add(Sensor.TYPE_MAGNETIC_FIELD);
+		if(rotationVector)
+			types.add(Sensor.TYPE_ROTATION_VECTOR);
+		int[] sensorTypes = new int[types.size()];
+		for(int i = 0; i < sensorTypes.length; i++)
+			sensorTypes[i] = types.get(i);
+		return sensorTypes;
+	}
 	
 	protected int getDisplayName(int test_name){
 	    GlobalApp app = GlobalApp.getApp();
@@ -103,6 +125,7 @@ public abstract class TestConfig {
 		if(enabled_tests == null){
 			GlobalApp app = GlobalApp.getApp();
 			enabled_tests = new ArrayList<TestConfig>();
+			compass_on = app.getBooleanPref(app.getString(R.string.test_compass));
 			for(int i = 0; i < ALL_TEST_NAMES.length; i++){
 				int test = ALL_TEST_NAMES[i];
 				if(app.getBooleanPref(app.getString(test))){
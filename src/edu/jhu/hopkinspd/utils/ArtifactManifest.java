@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Record of every data file the app produces and how far it has got
+ * towards the server, so the services can find their work without
+ * listing directories. Kept as an append-only text file, one
+ * "state\tsize\tpath" line per change; the latest line for a path wins.
+ * Files that are zipped into a session, uploaded or removed are dropped
+ * from memory, and the file is rewritten once dropped lines dominate it.
+ */
+public class ArtifactManifest
+{
+	private static final String TAG = "HopkinsPD|ArtifactManifest";
+
+	public static final String OPEN = "open";
+	public static final String SEALED = "sealed";
+	public static final String ZIPPED = "zipped";
+	public static final String ENCRYPTED = "encrypted";
+	public static final String UPLOADED = "uploaded";
+	public static final String REMOVED = "removed";
+
+	private static final int MIN_COMPACT_LINES = 256;
+
+	public static class Entry
+	{
+		public final File file;
+		public final String state;
+		public final long size;
+
+		Entry(File file, String state, long size)
+		{
+			this.file = file;
+			this.state = state;
+			this.size = size;
+		}
+	}
+
+	private final File manifestFile;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private int lines = 0;
+
+	public ArtifactManifest(File manifestFile)
+	{
+		this.manifestFile = manifestFile;
+		if (manifestFile.exists())
+			load();
+		else
+			append("");
+	}
+
+	public synchronized void record(File file, String state)
+	{
+		record(file, state, file.length());
+	}
+
+	public synchronized void record(File file, String state, long size)
+	{
+		String path = file.getAbsolutePath();
+		if (isFinal(state))
+		{
+			// Nothing to forget
+			if (entries.remove(path) == null)
+				return;
+		}
+		else
+		{
+			Entry old = entries.get(path);
+			if (old != null && old.state.equals(state) && old.size == size)
+				return;
+			entries.put(path, new Entry(new File(path), state, size));
+		}
+		append(state + "\t" + size + "\t" + path + "\n");
+		if (lines > MIN_COMPACT_LINES && lines > 4*entries.size())
+			compact();
+	}
+
+	public synchronized void remove(File file)
+	{
+		record(file, REMOVED, 0);
+	}
+
+	public synchronized boolean contains(File file)
+	{
+		return entries.containsKey(file.getAbsolutePath());
+	}
+
+	/**
+	 * Files directly inside dir in any of the given states, oldest first.
+	 * Entries whose file has disappeared are removed.
+	 */
+	public synchronized List<Entry> list(File dir, String... states)
+	{
+		String dirPath = dir.getAbsolutePath();
+		List<Entry> found = new ArrayList<Entry>();
+		List<File> missing = new ArrayList<File>();
+		for (Entry e : entries.values())
+		{
+			if (!dirPath.equals(e.file.getParent()) || !hasState(e, states))
+				continue;
+			if (e.file.exists())
+				found.add(e);
+			else
+				missing.add(e.file);
+		}
+		for (File f : missing)
+			remove(f);
+		return found;
+	}
+
+	public synchronized File[] listFiles(File dir, String... states)
+	{
+		List<Entry> found = list(dir, states);
+		File[] files = new File[found.size()];
+		for (int i = 0; i < files.length; i ++)
+			files[i] = found.get(i).file;
+		return files;
+	}
+
+	private static boolean hasState(Entry e, String[] states)
+	{
+		for (String s : states)
+		{
+			if (s.equals(e.state))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean isFinal(String state)
+	{
+		return state.equals(ZIPPED) || state.equals(UPLOADED) || state.equals(REMOVED);
+	}
+
+	private void load()
+	{
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				lines ++;
+				String[] fields = line.split("\t", 3);
+				if (fields.length < 3)
+					continue;
+				try
+				{
+					if (isFinal(fields[0]))
+						entries.remove(fields[2]);
+					else
+						entries.put(fields[2], new Entry(new File(fields[2]), fields[0], Long.parseLong(fields[1])));
+				}
+				catch (NumberFormatException e)
+				{
+					// Torn last line after a crash
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			Log.e(TAG, "Manifest read failed: " + e.getMessage());
+		}
+		finally
+		{
+			if (reader != null)
+			{
+				try
+				{
+					reader.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+	}
+
+	private void append(String line)
+	{
+		Writer out = null;
+		try
+		{
+			out = new OutputStreamWriter(new FileOutputStream(manifestFile, true), "UTF-8");
+			out.write(line);
+			if (line.length() > 0)
+				lines ++;
+		}
+		catch (IOException e)
+		{
+			Log.e(TAG, "Manifest write failed: " + e.getMessage());
+		}
+		finally
+		{
+			if (out != null)
+			{
+				try
+				{
+					out.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+	}
+
+	// Rewrite the live entries to a new file and swap it in
+	private void compact()
+	{
+		File tmp = new File(manifestFile.getPath() + ".tmp");
+		Writer out = null;
+		try
+		{
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+			for (Entry e : entries.values())
+			{
+				out.write(e.state + "\t" + e.size + "\t" + e.file.getAbsolutePath() + "\n");
+			}
+			out.close();
+			out = null;
+			if (tmp.renameTo(manifestFile))
+				lines = entries.size();
+		}
+		catch (IOException e)
+		{
+			Log.e(TAG, "Manifest compaction failed: " + e.getMessage());
+		}
+		finally
+		{
+			if (out != null)
+			{
+				try
+				{
+					out.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.utils;
+
+import java.io.BufferedWriter;
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import android.text.format.DateFormat;
+import android.util.Log;
+
+/**
+ * Writes text log files on a single background thread. Callers only
+ * append a record to a lock-free queue; the writer thread formats the time
+ * stamps, writes the lines and flushes every FLUSH_INTERVAL_MILLIS, or
+ * sooner once FLUSH_LEVEL records are waiting or an urgent one arrives.
+ * A file that grows past its size limit is renamed to the first free
+ * name.N.log and started again.
+ */
+public class AsyncLogger implements Runnable
+{
+	private static final String TAG = "HopkinsPD|AsyncLogger";
+
+	public static final long FLUSH_INTERVAL_MILLIS = 2000;
+	public static final int FLUSH_LEVEL = 64;
+	public static final long DEFAULT_MAX_FILE_BYTES = 1024*1024;
+
+	private static final String NEWLINE = System.getProperty("line.separator", "\n");
+
+	private static class Record
+	{
+		final Handle handle;
+		final long time;
+		final String text;
+
+		Record(Handle handle, long time, String text)
+		{
+			this.handle = handle;
+			this.time = time;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Log file handle, a BufferedWriter so it can stand in for the writers
+	 * openLogTextFile() used to return. Writes go to the logger queue as raw
+	 * text. Handles are shared, so close() only flushes.
+	 */
+	public class Handle extends BufferedWriter
+	{
+		final File file;
+		Writer out = null;
+		long size = 0;
+
+		Handle(File file)
+		{
+			super(new CharArrayWriter(0), 1);
+			this.file = file;
+		}
+
+		public File getFile()
+		{
+			return file;
+		}
+
+		/**
+		 * Queues "time: message" as one line. Urgent lines are written out
+		 * straight away.
+		 */
+		public void writeLine(long timeMillis, String message, boolean urgent)
+		{
+			enqueue(this, timeMillis, message, urgent);
+		}
+
+		@Override
+		public void write(int c)
+		{
+			enqueue(this, -1, String.valueOf((char)c), false);
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len)
+		{
+			enqueue(this, -1, new String(cbuf, off, len), false);
+		}
+
+		@Override
+		public void write(String s, int off, int len)
+		{
+			enqueue(this, -1, s.substring(off, off + len), false);
+		}
+
+		@Override
+		public void newLine()
+		{
+			enqueue(this, -1, NEWLINE, false);
+		}
+
+		@Override
+		public void flush()
+		{
+			requestFlush();
+		}
+
+		@Override
+		public void close()
+		{
+			requestFlush();
+		}
+	}
+
+	private final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<Record>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final HashMap<String, Handle> handles = new HashMap<String, Handle>();
+	private final long maxFileBytes;
+	private final Thread thread;
+	private volatile boolean flushRequested = false;
+
+	// Writer thread only
+	private long stampSecs = -1;
+	private String stamp = "";
+
+	public AsyncLogger(long maxFileBytes)
+	{
+		this.maxFileBytes = maxFileBytes;
+		thread = new Thread(this, "AsyncLogger");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * The handle for a log file, one per path for the life of the process.
+	 */
+	public synchronized Handle open(File file)
+	{
+		String path = file.getAbsolutePath();
+		Handle handle = handles.get(path);
+		if (handle == null)
+		{
+			handle = new Handle(file);
+			handles.put(path, handle);
+		}
+		return handle;
+	}
+
+	public void requestFlush()
+	{
+		flushRequested = true;
+		LockSupport.unpark(thread);
+	}
+
+	private void enqueue(Handle handle, long time, String text, boolean urgent)
+	{
+		queue.offer(new Record(handle, time, text));
+		if (pending.incrementAndGet() >= FLUSH_LEVEL || urgent)
+			requestFlush();
+	}
+
+	// Called on the writer thread when a file has been rotated
+	protected void onRotated(File file, File rotated)
+	{
+	}
+
+	@Override
+	public void run()
+	{
+		HashMap<Handle, Boolean> dirty = new HashMap<Handle, Boolean>();
+		while (true)
+		{
+			if (!flushRequested && pending.get() < FLUSH_LEVEL)
+				LockSupport.parkNanos(FLUSH_INTERVAL_MILLIS*1000000L);
+			flushRequested = false;
+
+			Record r;
+			while ((r = queue.poll()) != null)
+			{
+				pending.decrementAndGet();
+				if (write(r))
+					dirty.put(r.handle, Boolean.TRUE);
+			}
+			for (Handle h : dirty.keySet())
+			{
+				// A later write to the same file may have failed and closed it
+				if (h.out == null)
+					continue;
+				try
+				{
+					h.out.flush();
+				}
+				catch (IOException e)
+				{
+					closeFile(h);
+				}
+				catch (RuntimeException e)
+				{
+					Log.e(TAG, "Log flush failed: " + e);
+					closeFile(h);
+				}
+			}
+			dirty.clear();
+		}
+	}
+
+	private boolean write(Record r)
+	{
+		Handle h = r.handle;
+		try
+		{
+			if (h.out == null)
+				openFile(h);
+			String text = r.text;
+			if (r.time >= 0)
+				text = stamp(r.time) + ": " + text + NEWLINE;
+			h.out.write(text);
+			h.size += text.length();
+			if (h.size > maxFileBytes)
+				rotate(h);
+			return true;
+		}
+		catch (IOException e)
+		{
+			Log.e(TAG, "Log write failed: " + h.file.getName());
+			closeFile(h);
+			return false;
+		}
+		catch (RuntimeException e)
+		{
+			// Never let one bad record take down the logger thread
+			Log.e(TAG, "Log write failed: " + h.file.getName() + ", " + e);
+			closeFile(h);
+			return false;
+		}
+	}
+
+	private void openFile(Handle h) throws IOException
+	{
+		OutputStream os = new FileOutputStream(h.file, true);
+		h.out = new BufferedWriter(new OutputStreamWriter(os), 8192);
+		h.size = h.file.length();
+	}
+
+	private void closeFile(Handle h)
+	{
+		if (h.out != null)
+		{
+			try
+			{
+				h.out.close();
+			}
+			catch (IOException e)
+			{
+			}
+			h.out = null;
+		}
+	}
+
+	private void rotate(Handle h) throws IOException
+	{
+		h.out.flush();
+		// The file may have been emptied behind our back since it was opened
+		h.size = h.file.length();
+		if (h.size <= maxFileBytes)
+			return;
+		closeFile(h);
+		File rotated = rotatedFile(h.file);
+		if (h.file.renameTo(rotated))
+			onRotated(h.file, rotated);
+		openFile(h);
+	}
+
+	/**
+	 * First free name.N.log next to file. Rotated files are never replaced,
+	 * they are removed once a session zip has taken them.
+	 */
+	private static File rotatedFile(File file)
+	{
+		String path = file.getPath();
+		String base = path.endsWith(".log") ? path.substring(0, path.length() - 4) : path;
+		for (int n = 1; ; n ++)
+		{
+			File rotated = new File(base + "." + n + ".log");
+			if (!rotated.exists())
+				return rotated;
+		}
+	}
+
+	public static boolean isRotatedFile(File file)
+	{
+		return file.getName().matches(".*\\.[0-9]+\\.log");
+	}
+
+	private String stamp(long timeMillis)
+	{
+		long secs = timeMillis/1000;
+		if (secs != stampSecs)
+		{
+			stampSecs = secs;
+			stamp = DateFormat.format("yyyy/MM/dd kk:mm:ss", timeMillis).toString();
+		}
+		return stamp;
+	}
+}
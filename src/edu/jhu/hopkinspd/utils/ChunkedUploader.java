@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Random;
+
+/**
+ * Uploads one file at a time in fixed-size chunks, resuming from whatever
+ * the server already holds. Protocol, all parameters in the query string:
+ * <ul>
+ * <li>GET url?UserID&amp;FileName&amp;Total returns the number of bytes of
+ * the file the server has stored, as plain text.</li>
+ * <li>POST url?UserID&amp;FileName&amp;Total&amp;Offset with the chunk as an
+ * application/octet-stream body returns the new stored byte count.</li>
+ * </ul>
+ * The file is complete once the count equals its length. A 404 or 405 on
+ * the offset query, or a 200 whose body is not a byte count, means the
+ * server has no chunk endpoint.
+ * Not thread safe: run one instance per upload worker.
+ * Plain java.net, so it can be run against a local stub server.
+ */
+public class ChunkedUploader
+{
+	public static final int DEFAULT_CHUNK_SIZE = 256*1024;
+	public static final int DEFAULT_RETRIES = 3;
+	public static final int DEFAULT_BACKOFF_MILLIS = 2000;
+	public static final int MAX_BACKOFF_MILLIS = 60000;
+
+	// Bytes written per rate limiter booking
+	private static final int SLICE_SIZE = 16*1024;
+
+	// Result of upload()
+	public static final int UPLOAD_DONE = 0;
+	public static final int UPLOAD_FAILED = 1;
+	public static final int UPLOAD_UNSUPPORTED = 2;
+
+	private final String url;
+	private final String userID;
+	private final byte[] chunk;
+	private int retries = DEFAULT_RETRIES;
+	private int connectTimeout = 15000;
+	private int readTimeout = 30000;
+	private int backoffMillis = DEFAULT_BACKOFF_MILLIS;
+	private RateLimiter limiter = null;
+	private final Random random = new Random();
+	private String lastError = "";
+
+	public ChunkedUploader(String url, String userID, int chunkSize)
+	{
+		this.url = url;
+		this.userID = userID;
+		chunk = new byte[chunkSize];
+	}
+
+	public void setRetries(int retries)
+	{
+		this.retries = retries;
+	}
+
+	public void setTimeouts(int connectMillis, int readMillis)
+	{
+		connectTimeout = connectMillis;
+		readTimeout = readMillis;
+	}
+
+	public void setBackoff(int baseMillis)
+	{
+		backoffMillis = baseMillis;
+	}
+
+	/**
+	 * Chunk bodies are paced by the given limiter, which may be shared
+	 * with other uploaders. Null sends at full speed.
+	 */
+	public void setRateLimiter(RateLimiter limiter)
+	{
+		this.limiter = limiter;
+	}
+
+	public String getLastError()
+	{
+		return lastError;
+	}
+
+	/**
+	 * Sends whatever part of the file the server does not have yet. A dropped
+	 * connection re-queries the stored offset and carries on from there, up to
+	 * the retry limit of consecutive failures.
+	 */
+	public int upload(File file)
+	{
+		long total = file.length();
+		int failures = 0;
+		long offset = -1;
+		RandomAccessFile in = null;
+		try
+		{
+			in = new RandomAccessFile(file, "r");
+			while (true)
+			{
+				try
+				{
+					if (offset < 0)
+					{
+						offset = remoteOffset(file.getName(), total);
+						if (offset < 0)
+							return UPLOAD_UNSUPPORTED;
+					}
+					if (offset >= total)
+						return UPLOAD_DONE;
+
+					int len = (int)Math.min(chunk.length, total - offset);
+					in.seek(offset);
+					in.readFully(chunk, 0, len);
+					long stored = sendChunk(file.getName(), total, offset, len);
+					// An acknowledgement that stores nothing counts as a failure,
+					// otherwise the same chunk would be resent forever
+					if (stored <= offset || stored > total)
+						throw new IOException("Unexpected stored offset " + stored);
+					offset = stored;
+					failures = 0;
+				}
+				catch (IOException e)
+				{
+					lastError = e.getMessage();
+					if (++failures > retries)
+						return UPLOAD_FAILED;
+					onRetry(failures);
+					offset = -1;
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			lastError = e.getMessage();
+			return UPLOAD_FAILED;
+		}
+		finally
+		{
+			if (in != null)
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+	}
+
+	/**
+	 * Called before the next attempt after a failure. Waits an exponentially
+	 * growing delay with random jitter, so workers that failed together do
+	 * not all hit the server again at the same moment.
+	 */
+	protected void onRetry(int failures) throws IOException
+	{
+		int cap = (int)Math.min(MAX_BACKOFF_MILLIS, (long)backoffMillis << (failures - 1));
+		int delay = cap/2 + random.nextInt(cap/2 + 1);
+		try
+		{
+			Thread.sleep(delay);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Upload interrupted");
+		}
+	}
+
+	/**
+	 * Bytes of the file already stored on the server, or -1 if the server
+	 * has no chunk endpoint. Servers without one may answer any URL with a
+	 * page of their own, so a 200 that is not a number counts as no endpoint.
+	 */
+	public long remoteOffset(String fileName, long total) throws IOException
+	{
+		HttpURLConnection conn = open(query(fileName, total, -1));
+		try
+		{
+			conn.setRequestMethod("GET");
+			int code = conn.getResponseCode();
+			if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_BAD_METHOD)
+				return -1;
+			if (code != HttpURLConnection.HTTP_OK)
+				throw new IOException("HTTP " + code);
+			return readNumber(conn);
+		}
+		finally
+		{
+			conn.disconnect();
+		}
+	}
+
+	protected long sendChunk(String fileName, long total, long offset, int len) throws IOException
+	{
+		HttpURLConnection conn = open(query(fileName, total, offset));
+		try
+		{
+			conn.setRequestMethod("POST");
+			conn.setDoOutput(true);
+			conn.setFixedLengthStreamingMode(len);
+			conn.setRequestProperty("Content-Type", "application/octet-stream");
+			OutputStream out = conn.getOutputStream();
+			writeChunk(out, chunk, len);
+			out.close();
+			return readOffset(conn, conn.getResponseCode());
+		}
+		finally
+		{
+			conn.disconnect();
+		}
+	}
+
+	protected void writeChunk(OutputStream out, byte[] data, int len) throws IOException
+	{
+		if (limiter == null)
+		{
+			out.write(data, 0, len);
+			return;
+		}
+		for (int pos = 0; pos < len; pos += SLICE_SIZE)
+		{
+			int n = Math.min(SLICE_SIZE, len - pos);
+			limiter.acquire(n);
+			out.write(data, pos, n);
+		}
+	}
+
+	private HttpURLConnection open(String spec) throws IOException
+	{
+		HttpURLConnection conn = (HttpURLConnection)new URL(spec).openConnection();
+		conn.setConnectTimeout(connectTimeout);
+		conn.setReadTimeout(readTimeout);
+		conn.setUseCaches(false);
+		return conn;
+	}
+
+	private String query(String fileName, long total, long offset) throws IOException
+	{
+		StringBuilder q = new StringBuilder(url);
+		q.append((url.indexOf('?') < 0) ? '?' : '&');
+		q.append("UserID=").append(URLEncoder.encode(userID, "UTF-8"));
+		q.append("&FileName=").append(URLEncoder.encode(fileName, "UTF-8"));
+		q.append("&Total=").append(total);
+		if (offset >= 0)
+			q.append("&Offset=").append(offset);
+		return q.toString();
+	}
+
+	private static long readOffset(HttpURLConnection conn, int code) throws IOException
+	{
+		if (code != HttpURLConnection.HTTP_OK)
+			throw new IOException("HTTP " + code);
+		long offset = readNumber(conn);
+		if (offset < 0)
+			throw new IOException("Bad offset response");
+		return offset;
+	}
+
+	// Byte count on the first line of the response body, or -1 if there is none
+	private static long readNumber(HttpURLConnection conn) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+		try
+		{
+			String line = reader.readLine();
+			if (line == null)
+				return -1;
+			long n = Long.parseLong(line.trim());
+			return (n < 0) ? -1 : n;
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+}
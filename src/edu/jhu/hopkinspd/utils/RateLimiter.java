@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.utils;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Caps the combined byte rate of everything that acquires from it. Each
+ * acquire() books its bytes onto a running schedule and sleeps until its
+ * slot comes up, so callers sharing one instance share the budget.
+ */
+public class RateLimiter
+{
+	private final double nanosPerByte;
+	private long nextFreeNanos;
+
+	public RateLimiter(long bytesPerSecond)
+	{
+		nanosPerByte = 1e9/bytesPerSecond;
+		nextFreeNanos = System.nanoTime();
+	}
+
+	public void acquire(int bytes) throws InterruptedIOException
+	{
+		long waitNanos;
+		synchronized (this)
+		{
+			long now = System.nanoTime();
+			if (nextFreeNanos < now)
+				nextFreeNanos = now;
+			waitNanos = nextFreeNanos - now;
+			nextFreeNanos += (long)(bytes*nanosPerByte);
+		}
+		if (waitNanos > 0)
+		{
+			try
+			{
+				Thread.sleep(waitNanos/1000000, (int)(waitNanos%1000000));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Upload interrupted");
+			}
+		}
+	}
+}
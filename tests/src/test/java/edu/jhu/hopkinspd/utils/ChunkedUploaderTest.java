@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2015 Johns Hopkins University. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the copyright holder nor the names of
+ *   its contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.jhu.hopkinspd.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * ChunkedUploader against a stub chunk endpoint on a local HttpServer.
+ */
+public class ChunkedUploaderTest
+{
+	private static final int FILE_SIZE = 10000;
+	private static final int CHUNK_SIZE = 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private HttpServer server;
+	private StubHandler stub;
+	private File file;
+	private byte[] data;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		stub = new StubHandler();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/chunk", stub);
+		server.start();
+
+		data = new byte[FILE_SIZE];
+		new Random(1).nextBytes(data);
+		file = folder.newFile("session.zip.aes");
+		OutputStream out = new FileOutputStream(file);
+		out.write(data);
+		out.close();
+	}
+
+	@After
+	public void tearDown()
+	{
+		server.stop(0);
+	}
+
+	private ChunkedUploader uploader()
+	{
+		String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/chunk";
+		ChunkedUploader uploader = new ChunkedUploader(url, "user 1", CHUNK_SIZE);
+		uploader.setBackoff(1);
+		uploader.setTimeouts(2000, 2000);
+		return uploader;
+	}
+
+	@Test
+	public void uploadsWholeFileInChunks()
+	{
+		assertEquals(ChunkedUploader.UPLOAD_DONE, uploader().upload(file));
+		assertArrayEquals(data, stub.stored.toByteArray());
+		assertEquals(FILE_SIZE/CHUNK_SIZE, stub.posts.size());
+		assertEquals("user 1", stub.lastQuery.get("UserID"));
+		assertEquals(file.getName(), stub.lastQuery.get("FileName"));
+	}
+
+	@Test
+	public void resumesFromServerOffsetAfterDroppedConnection()
+	{
+		// Stored, then the connection drops before the reply
+		stub.dropAfterStoringPost = 3;
+		// Dropped before anything is stored
+		stub.dropBeforeStoringPost = 6;
+
+		assertEquals(ChunkedUploader.UPLOAD_DONE, uploader().upload(file));
+		assertArrayEquals(data, stub.stored.toByteArray());
+
+		// Each drop re-queries the offset, and no chunk the server kept is sent again
+		assertEquals(3, stub.gets);
+		List<Long> expected = new ArrayList<Long>();
+		for (long offset = 0; offset < FILE_SIZE; offset += CHUNK_SIZE)
+		{
+			expected.add(offset);
+			if (offset == 5*CHUNK_SIZE)
+				expected.add(offset);
+		}
+		assertEquals(expected, stub.posts);
+	}
+
+	@Test
+	public void failsWhenRepliesMakeNoProgress()
+	{
+		stub.ignoreChunks = true;
+		ChunkedUploader uploader = uploader();
+		uploader.setRetries(2);
+
+		assertEquals(ChunkedUploader.UPLOAD_FAILED, uploader.upload(file));
+		assertEquals(3, stub.posts.size());
+		assertEquals(0, stub.stored.size());
+	}
+
+	@Test
+	public void unsupportedOnNotFound()
+	{
+		stub.offsetStatus = 404;
+		assertEquals(ChunkedUploader.UPLOAD_UNSUPPORTED, uploader().upload(file));
+		assertEquals(1, stub.gets);
+		assertEquals(0, stub.posts.size());
+	}
+
+	@Test
+	public void unsupportedOnBadMethod()
+	{
+		stub.offsetStatus = 405;
+		assertEquals(ChunkedUploader.UPLOAD_UNSUPPORTED, uploader().upload(file));
+		assertEquals(1, stub.gets);
+		assertEquals(0, stub.posts.size());
+	}
+
+	@Test
+	public void unsupportedOnNonNumericOffset()
+	{
+		stub.offsetBody = "<html><body>Upload</body></html>";
+		assertEquals(ChunkedUploader.UPLOAD_UNSUPPORTED, uploader().upload(file));
+		assertEquals(1, stub.gets);
+		assertEquals(0, stub.posts.size());
+	}
+
+	/**
+	 * Keeps the bytes posted for one file and answers with the stored count.
+	 * Fields set by a test change how it misbehaves.
+	 */
+	private static class StubHandler implements HttpHandler
+	{
+		final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+		final List<Long> posts = new ArrayList<Long>();
+		volatile Map<String, String> lastQuery = null;
+		volatile int gets = 0;
+
+		int offsetStatus = 200;
+		String offsetBody = null;
+		boolean ignoreChunks = false;
+		int dropAfterStoringPost = -1;
+		int dropBeforeStoringPost = -1;
+
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			Map<String, String> query = parse(exchange.getRequestURI().getRawQuery());
+			lastQuery = query;
+			if (exchange.getRequestMethod().equals("GET"))
+			{
+				gets ++;
+				if (offsetStatus != 200)
+				{
+					reply(exchange, offsetStatus, "");
+					return;
+				}
+				reply(exchange, 200, (offsetBody != null) ? offsetBody : Integer.toString(stored.size()));
+				return;
+			}
+
+			long offset = Long.parseLong(query.get("Offset"));
+			int post;
+			synchronized (posts)
+			{
+				posts.add(offset);
+				post = posts.size();
+			}
+			byte[] body = readAll(exchange.getRequestBody());
+			if (post == dropBeforeStoringPost)
+			{
+				exchange.close();
+				return;
+			}
+			if (!ignoreChunks && offset == stored.size())
+				stored.write(body, 0, body.length);
+			if (post == dropAfterStoringPost)
+			{
+				exchange.close();
+				return;
+			}
+			reply(exchange, 200, Integer.toString(stored.size()));
+		}
+
+		private static void reply(HttpExchange exchange, int code, String body) throws IOException
+		{
+			byte[] bytes = body.getBytes("UTF-8");
+			exchange.sendResponseHeaders(code, (bytes.length == 0) ? -1 : bytes.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(bytes);
+			out.close();
+		}
+
+		private static byte[] readAll(InputStream in) throws IOException
+		{
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			byte[] b = new byte[4096];
+			int n;
+			while ((n = in.read(b)) > 0)
+				buffer.write(b, 0, n);
+			return buffer.toByteArray();
+		}
+
+		private static Map<String, String> parse(String query) throws IOException
+		{
+			Map<String, String> params = new HashMap<String, String>();
+			for (String p : query.split("&"))
+			{
+				int eq = p.indexOf('=');
+				params.put(p.substring(0, eq), URLDecoder.decode(p.substring(eq + 1), "UTF-8"));
+			}
+			return params;
+		}
+	}
+}